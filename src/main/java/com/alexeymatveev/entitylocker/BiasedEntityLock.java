@@ -0,0 +1,240 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Entity lock used by {@link EntityLocker} with {@link EntityLockType#BIASED}.
+ *
+ * After the same thread has acquired the lock several times in a row without contention, the lock is biased to it:
+ * the owner then locks and unlocks with plain volatile writes of its bias, without atomic read-modify-write operations
+ * on the lock state and without passing the locker gate - the bias itself is counted at the gate as one resource.
+ *
+ * Another thread acquires the underlying reentrant lock and then revokes the bias: marks it revoked and waits
+ * until the owner leaves its critical section. Owner writes its active flag before reading the revoked flag,
+ * revoker writes the revoked flag before reading the active flag, so at least one of them sees the other.
+ * Every bias is a new object, so a stale owner can never reuse a revoked bias.
+ * Global lock requester revokes biases of all other threads. Conditions are not supported.
+ */
+class BiasedEntityLock extends EntityLock {
+
+    private static final long serialVersionUID = 1L;
+
+    /* Number of uncontended acquisitions in a row by the same thread after which the lock is biased to it. */
+    static final int BIAS_AFTER_ACQUISITIONS = 4;
+
+    /* Number of yields waiting for the bias owner before parking. */
+    private static final int REVOKE_SPINS = 64;
+
+    /* Current bias, null if lock is not biased. */
+    private volatile Bias bias;
+
+    /* Last thread which acquired the underlying lock and how many times in a row, guarded by the underlying lock. */
+    private Thread lastOwner;
+
+    private int acquisitionsInRow;
+
+    BiasedEntityLock(EntityLocker<?> entityLocker) {
+        super(entityLocker);
+    }
+
+    @Override
+    protected boolean tryAcquireBiased() {
+        Thread current = Thread.currentThread();
+        Bias b = bias;
+        if (b == null || b.owner != current) {
+            return false;
+        }
+        if (b.holdCount > 0) {
+            b.holdCount++;
+            return true;
+        }
+        b.active = true;
+        if (b.revoked) {
+            // revoker may have seen the bias inactive - give up the fast path
+            b.active = false;
+            return false;
+        }
+        b.holdCount = 1;
+        return true;
+    }
+
+    @Override
+    protected void acquire() {
+        super.acquire();
+        onAcquiredUnderlying();
+    }
+
+    @Override
+    protected boolean tryAcquire() {
+        boolean locked = super.tryAcquire();
+        if (locked) onAcquiredUnderlying();
+        return locked;
+    }
+
+    @Override
+    protected boolean tryAcquire(long nanosTimeout) throws InterruptedException {
+        boolean locked = super.tryAcquire(nanosTimeout);
+        if (locked) onAcquiredUnderlying();
+        return locked;
+    }
+
+    @Override
+    protected void release() {
+        Bias b = bias;
+        if (b != null && b.owner == Thread.currentThread() && b.holdCount > 0) {
+            if (--b.holdCount == 0) {
+                b.active = false;
+            }
+            return;
+        }
+        super.release();
+    }
+
+    /* Called holding the underlying lock. */
+    private void onAcquiredUnderlying() {
+        if (super.getHoldCount() != 1) {
+            return;
+        }
+        revokeBias();
+        Thread current = Thread.currentThread();
+        if (lastOwner == current) {
+            acquisitionsInRow++;
+        } else {
+            lastOwner = current;
+            acquisitionsInRow = 1;
+        }
+    }
+
+    /**
+     * Revokes the bias of other thread waiting until it leaves its critical section.
+     * Must be called holding the underlying lock.
+     */
+    private void revokeBias() {
+        Bias b = bias;
+        if (b == null) {
+            return;
+        }
+        b.revoked = true;
+        int spins = REVOKE_SPINS;
+        while (b.active) {
+            if (spins > 0) {
+                spins--;
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(50));
+            }
+        }
+        bias = null;
+        getEntityLocker().onBiasRevoked(this);
+    }
+
+    /**
+     * Revokes the bias on behalf of global lock requester, unless the requester holds the lock through its own bias -
+     * such bias is counted as a resource of the requester.
+     */
+    void revokeForGlobalLock() {
+        if (isHeldBiased()) {
+            return;
+        }
+        // bias may be being set right now by the owner of the underlying lock
+        super.acquire();
+        try {
+            revokeBias();
+        } finally {
+            super.release();
+        }
+    }
+
+    /**
+     * Must be called by the owner of the underlying lock before the last hold is released.
+     * @return true if the lock has been acquired uncontended by current thread enough times in a row
+     */
+    boolean shouldBias() {
+        return lastOwner == Thread.currentThread() && acquisitionsInRow >= BIAS_AFTER_ACQUISITIONS && !hasQueuedThreads();
+    }
+
+    /**
+     * Biases the lock to current thread, must be called by the owner of the underlying lock.
+     */
+    void bias() {
+        acquisitionsInRow = 0;
+        bias = new Bias(Thread.currentThread());
+    }
+
+    /**
+     * @return thread the lock is biased to or null
+     */
+    Thread getBiasOwner() {
+        Bias b = bias;
+        return b == null ? null : b.owner;
+    }
+
+    @Override
+    boolean isHeldBiased() {
+        Bias b = bias;
+        return b != null && b.owner == Thread.currentThread() && b.holdCount > 0;
+    }
+
+    @Override
+    public Condition newCondition() {
+        throw new UnsupportedOperationException("Conditions are not supported by biased entity locks");
+    }
+
+    @Override
+    public boolean isLocked() {
+        Bias b = bias;
+        return b != null && b.active || super.isLocked();
+    }
+
+    @Override
+    public boolean isHeldByCurrentThread() {
+        return isHeldBiased() || super.isHeldByCurrentThread();
+    }
+
+    @Override
+    public int getHoldCount() {
+        Bias b = bias;
+        if (b != null && b.owner == Thread.currentThread() && b.holdCount > 0) {
+            return b.holdCount;
+        }
+        return super.getHoldCount();
+    }
+
+    @Override
+    public Thread getOwner() {
+        Bias b = bias;
+        if (b != null && b.active) {
+            return b.owner;
+        }
+        return super.getOwner();
+    }
+
+    @Override
+    public String toString() {
+        Thread o = getOwner();
+        Thread biasOwner = getBiasOwner();
+        return getClass().getName() + "@" + Integer.toHexString(hashCode())
+                + (o == null ? "[Unlocked]" : "[Locked by thread " + o.getName() + "]")
+                + (biasOwner == null ? "" : "[Biased to thread " + biasOwner.getName() + "]");
+    }
+
+    private static class Bias {
+
+        private final Thread owner;
+
+        /* Owner is in its critical section (or trying to enter it). Written only by the owner. */
+        private volatile boolean active;
+
+        /* Written once by the revoker. */
+        private volatile boolean revoked;
+
+        /* Reentrant hold count, accessed only by the owner. */
+        private int holdCount;
+
+        Bias(Thread owner) {
+            this.owner = owner;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Fork-join task of {@link EntityLocker#parallelForEach}.
+ * Splits the range of ids until it's small enough, then processes the range sequentially locking ids in batches.
+ *
+ * Only the first entity of a batch is locked with waiting, the rest are locked only if they are free,
+ * so a worker never waits while holding locks and can't deadlock with other threads locking the same entities.
+ */
+class BulkLockTask<K> extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    /* Max number of ids processed by one task without splitting. */
+    private static final int LEAF_SIZE = 64;
+
+    private final EntityLocker<K> entityLocker;
+
+    private final List<K> ids;
+
+    private final int from;
+
+    private final int to;
+
+    private final int batchSize;
+
+    private final Consumer<K> action;
+
+    private final AtomicLong processedCount;
+
+    private final AtomicLong batchCount;
+
+    BulkLockTask(EntityLocker<K> entityLocker, List<K> ids, int from, int to, int batchSize, Consumer<K> action,
+                 AtomicLong processedCount, AtomicLong batchCount) {
+        this.entityLocker = entityLocker;
+        this.ids = ids;
+        this.from = from;
+        this.to = to;
+        this.batchSize = batchSize;
+        this.action = action;
+        this.processedCount = processedCount;
+        this.batchCount = batchCount;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from > LEAF_SIZE) {
+            int middle = (from + to) >>> 1;
+            invokeAll(new BulkLockTask<>(entityLocker, ids, from, middle, batchSize, action, processedCount, batchCount),
+                    new BulkLockTask<>(entityLocker, ids, middle, to, batchSize, action, processedCount, batchCount));
+            return;
+        }
+        int next = from;
+        while (next < to) {
+            entityLocker.lock(ids.get(next));
+            int batchEnd = next + 1;
+            try {
+                while (batchEnd < to && batchEnd - next < batchSize
+                        && entityLocker.tryLock(ids.get(batchEnd), 0, TimeUnit.NANOSECONDS)) {
+                    batchEnd++;
+                }
+                for (int i = next; i < batchEnd; i++) {
+                    action.accept(ids.get(i));
+                }
+                processedCount.addAndGet(batchEnd - next);
+                batchCount.incrementAndGet();
+            } finally {
+                for (int i = next; i < batchEnd; i++) {
+                    entityLocker.unlock(ids.get(i));
+                }
+            }
+            next = batchEnd;
+        }
+    }
+}
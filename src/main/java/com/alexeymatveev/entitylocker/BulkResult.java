@@ -0,0 +1,56 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics of {@link EntityLocker#parallelForEach} bulk processing.
+ */
+public class BulkResult {
+
+    private final long processedCount;
+
+    private final long batchCount;
+
+    private final long elapsedNanos;
+
+    BulkResult(long processedCount, long batchCount, long elapsedNanos) {
+        this.processedCount = processedCount;
+        this.batchCount = batchCount;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return number of entities processed under lock
+     */
+    public long getProcessedCount() {
+        return processedCount;
+    }
+
+    /**
+     * @return number of lock batches - entities locked together by one worker
+     */
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return processed entities per second
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : processedCount * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "BulkResult{" +
+                "processedCount=" + processedCount +
+                ", batchCount=" + batchCount +
+                ", elapsedMillis=" + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) +
+                ", throughput=" + String.format("%.1f", getThroughput()) + "/s" +
+                '}';
+    }
+}
@@ -0,0 +1,91 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Entity lock hold times of one call site collected by {@link LockProfiler}.
+ */
+public class CallSiteProfile {
+
+    private final String callSite;
+
+    private final long sampledCount;
+
+    private final long slowCount;
+
+    private final long totalHoldNanos;
+
+    private final long maxHoldNanos;
+
+    private final long estimatedTotalHoldNanos;
+
+    private final StackTraceElement[] slowestStackTrace;
+
+    CallSiteProfile(String callSite, long sampledCount, long slowCount, long totalHoldNanos, long maxHoldNanos,
+                    long estimatedTotalHoldNanos, StackTraceElement[] slowestStackTrace) {
+        this.callSite = callSite;
+        this.sampledCount = sampledCount;
+        this.slowCount = slowCount;
+        this.totalHoldNanos = totalHoldNanos;
+        this.maxHoldNanos = maxHoldNanos;
+        this.estimatedTotalHoldNanos = estimatedTotalHoldNanos;
+        this.slowestStackTrace = slowestStackTrace;
+    }
+
+    /**
+     * @return first stack frame outside of the locker which acquired (or, for unsampled slow holds, released) the lock
+     */
+    public String getCallSite() {
+        return callSite;
+    }
+
+    /**
+     * @return number of sampled holds
+     */
+    public long getSampledCount() {
+        return sampledCount;
+    }
+
+    /**
+     * @return number of holds longer than slow threshold, sampled or not
+     */
+    public long getSlowCount() {
+        return slowCount;
+    }
+
+    /**
+     * @return hold time of recorded (sampled and slow) holds
+     */
+    public long getTotalHoldNanos() {
+        return totalHoldNanos;
+    }
+
+    public long getMaxHoldNanos() {
+        return maxHoldNanos;
+    }
+
+    /**
+     * @return hold time of all holds of the call site estimated from the samples
+     */
+    public long getEstimatedTotalHoldNanos() {
+        return estimatedTotalHoldNanos;
+    }
+
+    /**
+     * @return full stack trace of the longest recorded hold
+     */
+    public StackTraceElement[] getSlowestStackTrace() {
+        return slowestStackTrace.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "CallSiteProfile{" +
+                "callSite='" + callSite + '\'' +
+                ", sampledCount=" + sampledCount +
+                ", slowCount=" + slowCount +
+                ", estimatedTotalHoldMillis=" + TimeUnit.NANOSECONDS.toMillis(estimatedTotalHoldNanos) +
+                ", maxHoldMicros=" + TimeUnit.NANOSECONDS.toMicros(maxHoldNanos) +
+                '}';
+    }
+}
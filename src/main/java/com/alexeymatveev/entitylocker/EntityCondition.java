@@ -0,0 +1,86 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+/**
+ * Condition of entity lock created by {@link EntityLocker#newCondition}.
+ *
+ * While the thread awaits, its entity lock is not counted by the locker, so global lock doesn't wait for it.
+ * After being woken up the thread passes the global lock gate again before returning.
+ */
+class EntityCondition implements Condition {
+
+    private final EntityLocker<?> entityLocker;
+
+    private final EntityLock entityLock;
+
+    private final Condition condition;
+
+    EntityCondition(EntityLocker<?> entityLocker, EntityLock entityLock, Condition condition) {
+        this.entityLocker = entityLocker;
+        this.entityLock = entityLock;
+        this.condition = condition;
+    }
+
+    @Override
+    public void await() throws InterruptedException {
+        entityLocker.beforeAwait(entityLock);
+        try {
+            condition.await();
+        } finally {
+            entityLocker.afterAwait(entityLock);
+        }
+    }
+
+    @Override
+    public void awaitUninterruptibly() {
+        entityLocker.beforeAwait(entityLock);
+        try {
+            condition.awaitUninterruptibly();
+        } finally {
+            entityLocker.afterAwait(entityLock);
+        }
+    }
+
+    @Override
+    public long awaitNanos(long nanosTimeout) throws InterruptedException {
+        entityLocker.beforeAwait(entityLock);
+        try {
+            return condition.awaitNanos(nanosTimeout);
+        } finally {
+            entityLocker.afterAwait(entityLock);
+        }
+    }
+
+    @Override
+    public boolean await(long time, TimeUnit unit) throws InterruptedException {
+        entityLocker.beforeAwait(entityLock);
+        try {
+            return condition.await(time, unit);
+        } finally {
+            entityLocker.afterAwait(entityLock);
+        }
+    }
+
+    @Override
+    public boolean awaitUntil(Date deadline) throws InterruptedException {
+        entityLocker.beforeAwait(entityLock);
+        try {
+            return condition.awaitUntil(deadline);
+        } finally {
+            entityLocker.afterAwait(entityLock);
+        }
+    }
+
+    @Override
+    public void signal() {
+        condition.signal();
+    }
+
+    @Override
+    public void signalAll() {
+        condition.signalAll();
+    }
+}
@@ -0,0 +1,58 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Entity id qualified by the {@link LockManager} namespace it belongs to.
+ * Used as a key of the shared lock table and to lock entities of different namespaces together
+ * with {@link LockManager#lockAll}.
+ */
+public final class EntityKey<K> {
+
+    private final EntityLocker<K> entityLocker;
+
+    private final K id;
+
+    EntityKey(EntityLocker<K> entityLocker, K id) {
+        this.entityLocker = entityLocker;
+        this.id = id;
+    }
+
+    void lock() {
+        entityLocker.lock(id);
+    }
+
+    boolean tryLock(long timeout, TimeUnit timeUnit) {
+        return entityLocker.tryLock(id, timeout, timeUnit);
+    }
+
+    void unlock() {
+        entityLocker.unlock(id);
+    }
+
+    public EntityLocker<K> getEntityLocker() {
+        return entityLocker;
+    }
+
+    public K getId() {
+        return id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        EntityKey<?> that = (EntityKey<?>) o;
+        return entityLocker == that.entityLocker && id.equals(that.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * entityLocker.hashCode() + id.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return entityLocker.getName() + ":" + id;
+    }
+}
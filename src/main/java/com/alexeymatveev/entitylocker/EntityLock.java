@@ -0,0 +1,198 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reentrant lock used by {@link EntityLocker} for entities and global lock.
+ * Additionally exposes owner thread and remembers the time it was acquired so lock table can be inspected,
+ * keeps average hold time and number of waiting threads for admission control.
+ */
+class EntityLock extends ReentrantLock {
+
+    private static final long serialVersionUID = 1L;
+
+    /* Locker which created the lock, null for global locks. */
+    private final EntityLocker<?> entityLocker;
+
+    /* System.nanoTime() when lock was acquired (hold count went from 0 to 1), 0 if not locked. */
+    private volatile long lockedSinceNanos;
+
+    /* Exponentially weighted moving average of hold time, written only by the owner on release. */
+    private volatile long averageHoldNanos;
+
+    /* Number of threads blocked waiting for the lock, maintained by EntityLocker. */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /* Stack trace of the owner captured on acquiring by LockProfiler, accessed only by the owner. */
+    private StackTraceElement[] acquireStackTrace;
+
+    /* Condition signalled when entity is changed, created lazily by the lock owner. */
+    private Condition changedCondition;
+
+    /* Orders blocked waiters by priority, created lazily by the first blocked waiter. */
+    private volatile PriorityWaitQueue priorityWaitQueue;
+
+    EntityLock() {
+        this(null);
+    }
+
+    EntityLock(EntityLocker<?> entityLocker) {
+        this.entityLocker = entityLocker;
+    }
+
+    @Override
+    public void lock() {
+        acquire();
+        onAcquired();
+    }
+
+    @Override
+    public boolean tryLock() {
+        boolean locked = tryAcquire();
+        if (locked) onAcquired();
+        return locked;
+    }
+
+    @Override
+    public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+        boolean locked = tryAcquire(unit.toNanos(timeout));
+        if (locked) onAcquired();
+        return locked;
+    }
+
+    @Override
+    public void unlock() {
+        if (getHoldCount() == 1) {
+            long holdNanos = System.nanoTime() - lockedSinceNanos;
+            long average = averageHoldNanos;
+            // weight of new sample is 1/8
+            averageHoldNanos = average == 0 ? holdNanos : average + ((holdNanos - average) >> 3);
+            lockedSinceNanos = 0;
+        }
+        release();
+    }
+
+    /**
+     * Acquires the lock through the owner-local fast path of a biased lock, without passing the locker gate.
+     * @return true if acquired, always false for locks which are not biased
+     */
+    boolean tryLockBiased() {
+        boolean locked = tryAcquireBiased();
+        if (locked) onAcquired();
+        return locked;
+    }
+
+    /**
+     * @return true if current thread holds the lock through the fast path of a biased lock
+     */
+    boolean isHeldBiased() {
+        return false;
+    }
+
+    /* Lock state operations - overridden by other lock implementations. */
+
+    protected boolean tryAcquireBiased() {
+        return false;
+    }
+
+    protected void acquire() {
+        super.lock();
+    }
+
+    protected boolean tryAcquire() {
+        return super.tryLock();
+    }
+
+    protected boolean tryAcquire(long nanosTimeout) throws InterruptedException {
+        return super.tryLock(nanosTimeout, TimeUnit.NANOSECONDS);
+    }
+
+    protected void release() {
+        super.unlock();
+    }
+
+    private void onAcquired() {
+        if (getHoldCount() == 1) {
+            lockedSinceNanos = System.nanoTime();
+        }
+    }
+
+    @Override
+    public Thread getOwner() {
+        return super.getOwner();
+    }
+
+    EntityLocker<?> getEntityLocker() {
+        return entityLocker;
+    }
+
+    long getLockedSinceNanos() {
+        return lockedSinceNanos;
+    }
+
+    /**
+     * Restarts hold time after the lock was given back to the owner by a condition.
+     */
+    void onReacquired() {
+        lockedSinceNanos = System.nanoTime();
+    }
+
+    /**
+     * Must be called by the lock owner.
+     * @return condition of entity changes shared by all threads
+     */
+    Condition getChangedCondition() {
+        if (changedCondition == null) {
+            changedCondition = newCondition();
+        }
+        return changedCondition;
+    }
+
+    /**
+     * Blocked waiters are ordered by {@link PriorityWaitQueue} only while a waiter of non-default priority
+     * is waiting, otherwise they block on the lock directly.
+     * @param priority priority class of the blocking thread
+     * @return true - if the thread should wait in the priority queue
+     *         false - otherwise
+     */
+    boolean isPriorityOrdered(LockPriority priority) {
+        if (priority != LockPriority.NORMAL) {
+            return true;
+        }
+        PriorityWaitQueue queue = priorityWaitQueue;
+        return queue != null && queue.hasPrioritizedWaiters();
+    }
+
+    PriorityWaitQueue getPriorityWaitQueue() {
+        PriorityWaitQueue queue = priorityWaitQueue;
+        if (queue == null) {
+            synchronized (this) {
+                queue = priorityWaitQueue;
+                if (queue == null) {
+                    queue = new PriorityWaitQueue();
+                    priorityWaitQueue = queue;
+                }
+            }
+        }
+        return queue;
+    }
+
+    StackTraceElement[] getAcquireStackTrace() {
+        return acquireStackTrace;
+    }
+
+    void setAcquireStackTrace(StackTraceElement[] acquireStackTrace) {
+        this.acquireStackTrace = acquireStackTrace;
+    }
+
+    long getAverageHoldNanos() {
+        return averageHoldNanos;
+    }
+
+    AtomicInteger getWaiters() {
+        return waiters;
+    }
+}
@@ -0,0 +1,61 @@
+package com.alexeymatveev.entitylocker;
+
+/**
+ * Immutable information about a single locked entity taken by {@link EntityLocker#snapshot()}.
+ */
+public class EntityLockInfo<K> {
+
+    private final K id;
+
+    private final String ownerThreadName;
+
+    private final long ownerThreadId;
+
+    private final int queueLength;
+
+    private final long holdDurationNanos;
+
+    EntityLockInfo(K id, Thread owner, int queueLength, long holdDurationNanos) {
+        this.id = id;
+        this.ownerThreadName = owner == null ? null : owner.getName();
+        this.ownerThreadId = owner == null ? -1 : owner.getId();
+        this.queueLength = queueLength;
+        this.holdDurationNanos = holdDurationNanos;
+    }
+
+    public K getId() {
+        return id;
+    }
+
+    /**
+     * @return name of the thread holding the lock, null if it was released while taking the snapshot
+     */
+    public String getOwnerThreadName() {
+        return ownerThreadName;
+    }
+
+    public long getOwnerThreadId() {
+        return ownerThreadId;
+    }
+
+    /**
+     * @return estimated number of threads waiting for the lock
+     */
+    public int getQueueLength() {
+        return queueLength;
+    }
+
+    public long getHoldDurationNanos() {
+        return holdDurationNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "EntityLockInfo{" +
+                "id=" + id +
+                ", owner='" + ownerThreadName + '\'' +
+                ", queueLength=" + queueLength +
+                ", holdDurationNanos=" + holdDurationNanos +
+                '}';
+    }
+}
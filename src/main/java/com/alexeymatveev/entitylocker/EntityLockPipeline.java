@@ -0,0 +1,398 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Entity locker for bursts of short lock requests from many threads, based on flat combining.
+ *
+ * Instead of contending on the lock table and entity locks, threads publish lock / unlock requests into a ring buffer.
+ * One of the waiting threads becomes the combiner: it drains the ring in batches and processes the whole batch
+ * in one pass over the lock table - grants all requests of free (or own) entities, queues requests of held entities
+ * and hands released entities off directly to the next queued request. Lock table is touched only by the combiner,
+ * so it's a plain hash map without any synchronization.
+ *
+ * Locks are reentrant and must be released by the owner thread. Global lock works the same as in {@link EntityLocker}:
+ * it doesn't wait for entity locks of the requester and lock requests queued on them. There is no escalation to global lock.
+ * Entity locks of the pipeline are independent of entity locks of other lockers.
+ */
+public class EntityLockPipeline<K> {
+
+    private static final int PENDING = 0;
+    private static final int QUEUED = 1;
+    private static final int GRANTED = 2;
+    private static final int RELEASED = 3;
+    private static final int NOT_HELD = 4;
+
+    /* Max time a thread with unprocessed request sleeps before trying to become combiner again. */
+    private static final long COMBINER_RETRY_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /* Ring buffer of published requests. Slot is null when free. */
+    private final AtomicReferenceArray<Request<K>> ring;
+
+    private final int mask;
+
+    /* Sequence of the next slot claimed by a publisher. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /* Sequence of the next slot drained by the combiner, changed only by the combiner. */
+    private volatile long head;
+
+    /* Held by the thread processing requests. */
+    private final ReentrantLock combinerLock = new ReentrantLock();
+
+    /* Lock table: held entities with their owner and queued requests. Accessed only by the combiner. */
+    private final Map<K, Entry<K>> lockTable = new HashMap<>();
+
+    /* Global lock and the gate lockers pass before publishing lock requests. */
+    private final GlobalLockGate gate = new GlobalLockGate();
+
+    /* Request of current thread, reused - a thread has at most one request in progress. */
+    private final ThreadLocal<Request<K>> currentThreadRequest = ThreadLocal.withInitial(() -> new Request<>(Thread.currentThread()));
+
+    /* Number of entities locked by current thread. */
+    private final ThreadLocal<int[]> currentThreadLocksHeld = ThreadLocal.withInitial(() -> new int[1]);
+
+    /* Statistics written only by the combiner. */
+    private volatile long batchCount;
+
+    private volatile long requestCount;
+
+    public EntityLockPipeline() {
+        this(1024);
+    }
+
+    /**
+     * @param capacity ring buffer capacity, rounded up to a power of two.
+     *                 Publishers wait for a free slot (helping to drain the ring) when it's full.
+     */
+    public EntityLockPipeline(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Ring buffer capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Locks the entity by id, preventing other threads to lock the same id until released.
+     * Will also be blocked if a global lock is currently locked (or requested, depending on {@link GlobalLockFairness}).
+     * @param id entity id
+     */
+    public void lock(K id) {
+        if (id == null) {
+            throw new NullPointerException("Trying to lock entity with null ID");
+        }
+        int[] locksHeld = currentThreadLocksHeld.get();
+        gate.enter(locksHeld[0] > 0, 1);
+        Request<K> request = submit(id, true);
+        boolean interrupted = false;
+        while (true) {
+            while (request.state == QUEUED) {
+                LockSupport.park(this);
+                // lock() is not interruptible - remember the interrupt and keep waiting
+                interrupted |= Thread.interrupted();
+            }
+            if (request.reentrant || !gate.isGlobalLockedByOtherThread()) {
+                break;
+            }
+            // got the lock handed off by global lock owner - see ownResources()
+            submit(id, false);
+            gate.leave(1);
+            gate.enter(locksHeld[0] > 0, 1);
+            request = submit(id, true);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (request.reentrant) {
+            gate.leave(1);
+        } else {
+            locksHeld[0]++;
+        }
+    }
+
+    /**
+     * Releases the lock for entity with id.
+     * @param id entity id
+     */
+    public void unlock(K id) {
+        Request<K> request = submit(id, false);
+        if (request.state == NOT_HELD) {
+            throw new IllegalMonitorStateException("Entity lock for id " + id + " is not held by current thread");
+        }
+        if (!request.reentrant) {
+            currentThreadLocksHeld.get()[0]--;
+            gate.leave(1);
+        }
+    }
+
+    /**
+     * Publishes the request and helps to process requests until it's processed.
+     * @return processed request of current thread
+     */
+    private Request<K> submit(K id, boolean lock) {
+        Request<K> request = currentThreadRequest.get();
+        request.id = id;
+        request.lock = lock;
+        request.reentrant = false;
+        request.state = PENDING;
+        publish(request);
+        while (request.state == PENDING) {
+            if (!tryCombine()) {
+                LockSupport.parkNanos(this, COMBINER_RETRY_NANOS);
+            }
+        }
+        request.id = null;
+        return request;
+    }
+
+    private void publish(Request<K> request) {
+        long sequence = tail.getAndIncrement();
+        // ring is full - wait until the request published a full ring earlier in the same slot is drained
+        while (sequence - head > mask) {
+            if (!tryCombine()) {
+                Thread.yield();
+            }
+        }
+        ring.set((int) (sequence & mask), request);
+    }
+
+    /**
+     * Processes published requests if no other thread does it.
+     * Combiner keeps draining while there are requests in the ring.
+     * @return true if current thread was the combiner
+     */
+    private boolean tryCombine() {
+        if (!combinerLock.tryLock()) {
+            return false;
+        }
+        try {
+            int processed;
+            do {
+                processed = combine();
+            } while (processed > 0);
+        } finally {
+            combinerLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Drains at most one ring of requests and processes them in one pass.
+     * Must be called by the combiner.
+     * @return number of processed requests
+     */
+    private int combine() {
+        long sequence = head;
+        int processed = 0;
+        while (processed <= mask) {
+            int index = (int) (sequence & mask);
+            Request<K> request = ring.get(index);
+            if (request == null) {
+                // ring is empty or publisher of the slot has not written its request yet
+                break;
+            }
+            ring.set(index, null);
+            head = ++sequence;
+            processed++;
+            if (request.lock) {
+                grant(request);
+            } else {
+                release(request);
+            }
+        }
+        if (processed > 0) {
+            batchCount++;
+            requestCount += processed;
+        }
+        return processed;
+    }
+
+    private void grant(Request<K> request) {
+        Entry<K> entry = lockTable.get(request.id);
+        if (entry == null) {
+            lockTable.put(request.id, new Entry<>(request));
+            complete(request, GRANTED);
+        } else if (entry.owner.thread == request.thread) {
+            entry.holdCount++;
+            request.reentrant = true;
+            complete(request, GRANTED);
+        } else {
+            entry.queue.addLast(request);
+            entry.owner.queuedBehind++;
+            request.state = QUEUED;
+        }
+    }
+
+    private void release(Request<K> request) {
+        Entry<K> entry = lockTable.get(request.id);
+        if (entry == null || entry.owner.thread != request.thread) {
+            complete(request, NOT_HELD);
+            return;
+        }
+        if (--entry.holdCount > 0) {
+            request.reentrant = true;
+            complete(request, RELEASED);
+            return;
+        }
+        Request<K> next = entry.queue.pollFirst();
+        if (next == null) {
+            lockTable.remove(request.id);
+        } else {
+            // hand off to the next queued locker, the rest of the queue waits for it now
+            entry.owner.queuedBehind -= entry.queue.size() + 1;
+            entry.owner = next;
+            entry.holdCount = 1;
+            next.queuedBehind += entry.queue.size();
+            complete(next, GRANTED);
+        }
+        complete(request, RELEASED);
+    }
+
+    private void complete(Request<K> request, int state) {
+        Thread thread = request.thread;
+        request.state = state;
+        if (thread != Thread.currentThread()) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Global exclusive lock for all entity ids.
+     * The lock will wait until all other entity locks are released. The lock is reentrant.
+     */
+    public void globalLock() {
+        gate.globalLock(this::ownResources, LockPriority.NORMAL);
+    }
+
+    /**
+     * Tries to acquire global lock waiting not longer than timeout.
+     * @param timeout timeout duration
+     * @param timeUnit timeout time unit
+     * @return true - if lock was acquired
+     *         false - otherwise
+     */
+    public boolean tryGlobalLock(long timeout, TimeUnit timeUnit) {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        try {
+            return gate.tryGlobalLock(this::ownResources, deadline);
+        } catch (InterruptedException e) {
+            System.out.println("Thread was interrupted while trying to acquire the global lock");
+            return false;
+        }
+    }
+
+    /**
+     * Resources global lock requested by current thread doesn't wait for: entity locks held by current thread
+     * and lock requests queued on them - those can't proceed until current thread releases its locks,
+     * waiting for them would deadlock.
+     * @return number of resources
+     */
+    private long ownResources() {
+        return currentThreadLocksHeld.get()[0] + currentThreadRequest.get().queuedBehind;
+    }
+
+    public void globalUnlock() {
+        gate.globalUnlock();
+    }
+
+    public boolean isGlobalLock() {
+        return gate.isGlobalLocked();
+    }
+
+    /**
+     * @return number of batches processed by combiners
+     */
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * @return number of lock and unlock requests processed by combiners
+     */
+    public long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * @return average number of requests processed in one batch
+     */
+    public double getAverageBatchSize() {
+        long batches = batchCount;
+        return batches == 0 ? 0 : (double) requestCount / batches;
+    }
+
+    /**
+     * @return number of requests published to the ring and not drained by the combiner yet
+     */
+    int getPublishedRequestCount() {
+        int published = 0;
+        for (int i = 0; i <= mask; i++) {
+            if (ring.get(i) != null) published++;
+        }
+        return published;
+    }
+
+    /**
+     * Lock held by the combiner - while another thread holds it, published requests are not processed.
+     */
+    ReentrantLock getCombinerLock() {
+        return combinerLock;
+    }
+
+    public void setGlobalLockFairness(GlobalLockFairness globalLockFairness) {
+        gate.setGlobalLockFairness(globalLockFairness);
+    }
+
+    public void setMaxGlobalBypass(int maxGlobalBypass) {
+        gate.setMaxGlobalBypass(maxGlobalBypass);
+    }
+
+    private static class Request<K> {
+
+        private final Thread thread;
+
+        /* Fields below are written by the requesting thread before publishing and by the combiner while processing. */
+        private K id;
+
+        private boolean lock;
+
+        /* Lock was already held by the thread before this request (or is still held after it). */
+        private boolean reentrant;
+
+        private volatile int state;
+
+        /* Number of requests queued on entities locked by the thread, written only by the combiner. */
+        private volatile int queuedBehind;
+
+        Request(Thread thread) {
+            this.thread = thread;
+        }
+    }
+
+    private static class Entry<K> {
+
+        /* Request of the owner thread. */
+        private Request<K> owner;
+
+        private int holdCount = 1;
+
+        /* Lock requests waiting for the entity in the order of arrival. */
+        private final ArrayDeque<Request<K>> queue = new ArrayDeque<>();
+
+        Entry(Request<K> owner) {
+            this.owner = owner;
+        }
+    }
+}
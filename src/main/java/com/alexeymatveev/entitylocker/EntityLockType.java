@@ -0,0 +1,27 @@
+package com.alexeymatveev.entitylocker;
+
+/**
+ * Implementation of entity locks used by {@link EntityLocker}, see {@link EntityLocker#setEntityLockType}.
+ */
+public enum EntityLockType {
+
+    /**
+     * {@link java.util.concurrent.locks.ReentrantLock} - non-fair, all waiters contend on the lock state.
+     */
+    REENTRANT,
+
+    /**
+     * MCS queue lock - waiters enqueue and spin on their own queue node, the lock is handed off
+     * directly to the next waiter in FIFO order. Reduces cache line bouncing on hot entities with many waiters.
+     * Entity conditions and entity lock priorities are not supported, timed tryLock may starve
+     * under contention, see {@link EntityLocker#tryLock}.
+     */
+    QUEUED,
+
+    /**
+     * Reentrant lock biased to the thread which acquires it repeatedly - the owner then locks and unlocks
+     * without atomic read-modify-write operations and without passing the gate. Bias is revoked when another thread
+     * or global lock contends. Supported only by standalone lockers, entity conditions are not supported.
+     */
+    BIASED
+}
@@ -1,12 +1,23 @@
 package com.alexeymatveev.entitylocker;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 /**
  * Utility class that provides synchronization mechanism similar to row-level DB locking.
@@ -16,79 +27,335 @@ import java.util.concurrent.locks.ReentrantLock;
  *
  * Utility provided basic locking by id / key as well as global lock for all entity ids.
  *
+ * Locker can be standalone or a namespace of {@link LockManager} sharing the lock table and per thread state
+ * with other namespaces.
+ *
  * Created by Alexey Matveev on 4/4/2018.
  */
 public class EntityLocker<K> {
 
-    /* Map of entity locks. Each entity has it's own associated lock. Key is entity key, value is the lock. */
-    private Map<K, ReentrantLock> entitiesLockingMap = new ConcurrentHashMap<>();
+    /* Default delay of waiters per priority class, see LockPriority. */
+    static final long DEFAULT_PRIORITY_AGING_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /* Lock manager hosting the locker as a namespace, null for a standalone locker. */
+    private final LockManager lockManager;
+
+    /* Namespace name in the lock manager, null for a standalone locker. */
+    private final String name;
+
+    /* Map of entity locks. Each entity has it's own associated lock. Value is the lock, key is entity key -
+     * or EntityKey of this locker and entity key if the map is shared by all namespaces of the lock manager. */
+    private final Map<Object, EntityLock> entitiesLockingMap;
 
     /* Lock which prevents threads to create same entity lock twice. */
     private ReentrantLock createEntityLockLock = new ReentrantLock();
 
-    /* Synchronization lock for all unlocking methods */
-    private ReentrantLock unlockLock = new ReentrantLock();
+    /* Global lock and the gate entity lockers pass before acquiring entity locks. */
+    private GlobalLockGate gate = new GlobalLockGate();
 
-    /* Global lock which prevent any thread to acquire any entity lock until released. */
-    private ReentrantLock globalLock = new ReentrantLock();
+    /* Manager-wide global lock and the gate passed before own gate, null for a standalone locker. */
+    private final GlobalLockGate managerGate;
 
-    /* Lock which happens before global - used to acquire global lock. */
-    private ReentrantLock beforeGlobalLock = new ReentrantLock();
+    /* Entity locks held by current thread and its escalation state, shared by all namespaces of the lock manager. */
+    private final ThreadLocal<LockerThreadState> threadState;
 
-    /* Number of threads which currently hold unique entity locks. */
-    private AtomicLong entityLockCount = new AtomicLong();
+    /* Biased entity locks (or locks being biased) - their biases are revoked when global lock is requested. */
+    private final Set<BiasedEntityLock> biasedLocks = ConcurrentHashMap.newKeySet();
 
-    private ThreadLocal<Set<K>> currentThreadKeysLocked = ThreadLocal.withInitial(HashSet::new);
+    /* Threads which escalated to global lock - visible to other threads for introspection only. */
+    private Set<Thread> escalatedThreads = ConcurrentHashMap.newKeySet();
 
-    private ThreadLocal<Boolean> escalateGlobal = ThreadLocal.withInitial(() -> false);
+    /* Per thread guard for try-with-resources locking - reused so acquiring guards doesn't allocate. */
+    private ThreadLocal<LockGuard<K>> currentThreadGuard = ThreadLocal.withInitial(() -> new LockGuard<>(this));
 
     private int globalEscalationThreshold = 3;
 
+    /* Number of threads blocked waiting for any entity lock. */
+    private AtomicInteger entityWaiters = new AtomicInteger();
+
+    /* Number of rejected lockOrReject() calls by rejection reason ordinal. */
+    private AtomicLongArray rejectedCounts = new AtomicLongArray(LockResult.values().length);
+
+    private int maxWaitersPerEntity = Integer.MAX_VALUE;
+
+    private int maxWaiters = Integer.MAX_VALUE;
+
+    private long maxExpectedWaitNanos = Long.MAX_VALUE;
+
+    private EntityLockType entityLockType = EntityLockType.REENTRANT;
+
+    /* Hold time profiler, null if profiling is disabled. */
+    private volatile LockProfiler profiler;
+
+    /* Delay of entity lock waiters per priority class, see LockPriority. */
+    private volatile long priorityAgingNanos = DEFAULT_PRIORITY_AGING_NANOS;
+
+    /* Wait times of blocked entity lock acquisitions by priority ordinal. */
+    private final WaitStats[] waitStats = newWaitStats();
+
+    /* Wait times of global lock acquisitions by priority ordinal. */
+    private final WaitStats[] globalWaitStats = newWaitStats();
+
+    /**
+     * Creates a standalone locker with its own lock table and global lock.
+     */
+    public EntityLocker() {
+        this.lockManager = null;
+        this.name = null;
+        this.entitiesLockingMap = new ConcurrentHashMap<>();
+        this.managerGate = null;
+        this.threadState = ThreadLocal.withInitial(LockerThreadState::new);
+        gate.setGlobalRequestListener(this::revokeBiases);
+    }
+
+    /**
+     * Creates a namespace of the lock manager sharing its lock table, per thread state and manager-wide global lock.
+     */
+    EntityLocker(LockManager lockManager, String name, Map<Object, EntityLock> lockTable,
+                 GlobalLockGate managerGate, ThreadLocal<LockerThreadState> threadState) {
+        this.lockManager = lockManager;
+        this.name = name;
+        this.entitiesLockingMap = lockTable;
+        this.managerGate = managerGate;
+        this.threadState = threadState;
+    }
+
     /**
      * Locks the entity by id, preventing other threads to lock the same id until released.
      * Behaves the same as {@link ReentrantLock#lock} but on entity id level.
-     * Will also be blocked if a global lock is currently locked until it's released.
+     * Will also be blocked if a global lock is currently locked (or requested, depending on {@link GlobalLockFairness})
+     * until it's released.
+     * Waits with {@link LockPriority#NORMAL} priority.
      * @param id entity id
      */
     public void lock(K id) {
+        lock(id, LockPriority.NORMAL);
+    }
+
+    /**
+     * Locks the entity like {@link #lock(Object)}, threads blocked on the same entity are granted the lock
+     * in priority order with aging, see {@link LockPriority}.
+     * Ignored for {@link EntityLockType#QUEUED} entity locks, which are granted in FIFO order.
+     * If the lock escalates to global lock, waits for global lock with the same priority.
+     * @param id entity id
+     * @param priority priority of current thread among waiters
+     */
+    public void lock(K id, LockPriority priority) {
         if (id == null) {
             throw new NullPointerException("Trying to lock entity with null ID");
         }
-        if (escalateGlobal.get()) {
+        lock(id, null, priority);
+    }
+
+    /**
+     * Locks the entity using already known entity lock.
+     * @param id entity id
+     * @param entityLock entity lock or null if it should be found in the lock table
+     */
+    void lock(K id, EntityLock entityLock) {
+        lock(id, entityLock, LockPriority.NORMAL);
+    }
+
+    private void lock(K id, EntityLock entityLock, LockPriority priority) {
+        LockerThreadState state = threadState.get();
+        if (state.escalatedLockers.contains(this)) {
             // if global escalated - don't lock
             System.out.println("Global escalated - won't lock id " + id);
         } else {
-            // otherwise try acquire the lock
-            beforeGlobalLock.lock();
-            globalLock.lock();
-            Set<K> keysLocked = currentThreadKeysLocked.get();
-            if (keysLocked.size() < globalEscalationThreshold) {
+            int locksHeld = countHeld(state);
+            if (locksHeld < globalEscalationThreshold) {
                 // if current threads locks < threshold - acquire entity id lock
-                getOrCreateEntityLock(id).lock();
-                entityLockCount.incrementAndGet();
-                if (!keysLocked.contains(id)) {
-                    keysLocked.add(id);
+                if (entityLock == null) {
+                    entityLock = getOrCreateEntityLock(id);
+                }
+                if (entityLock.tryLockBiased()) {
+                    onEntityLockAcquired(entityLock, state, false);
+                    return;
                 }
-                globalLock.unlock();
-                beforeGlobalLock.unlock();
+                enterGates(state, locksHeld > 0);
+                acquireEntityLock(entityLock, priority);
+                waitForGlobalUnlock(entityLock, state, locksHeld > 0, priority);
+                onEntityLockAcquired(entityLock, state, true);
             } else {
                 // escalate to global lock
-                globalLock.unlock();
-                beforeGlobalLock.unlock();
-                escalateGlobal.set(true);
-                globalLock();
+                state.escalatedLockers.add(this);
+                escalatedThreads.add(Thread.currentThread());
+                globalLock(priority);
+            }
+        }
+    }
+
+    /**
+     * Locks the entity like {@link #lock} unless there are too many waiters or expected wait is too long -
+     * in this case fails fast without queuing.
+     * Limits are set with {@link #setMaxWaitersPerEntity}, {@link #setMaxWaiters} and {@link #setMaxExpectedWait}.
+     * Waiting for the global lock is not limited.
+     * @param id entity id
+     * @return {@link LockResult#ACQUIRED} if locked, otherwise the reason of rejection
+     */
+    public LockResult lockOrReject(K id) {
+        if (id == null) {
+            throw new NullPointerException("Trying to lock entity with null ID");
+        }
+        LockerThreadState state = threadState.get();
+        int locksHeld = countHeld(state);
+        if (state.escalatedLockers.contains(this) || locksHeld >= globalEscalationThreshold) {
+            // global lock is (or will be) held - nothing to shed
+            lock(id, null, LockPriority.NORMAL);
+            return LockResult.ACQUIRED;
+        }
+        EntityLock entityLock = getOrCreateEntityLock(id);
+        if (entityLock.tryLockBiased()) {
+            onEntityLockAcquired(entityLock, state, false);
+            return LockResult.ACQUIRED;
+        }
+        enterGates(state, locksHeld > 0);
+        if (!entityLock.tryLock()) {
+            LockResult rejection = admitWaiter(entityLock);
+            if (rejection != null) {
+                leaveGates(state);
+                rejectedCounts.incrementAndGet(rejection.ordinal());
+                return rejection;
             }
+            try {
+                waitForEntityLock(entityLock, LockPriority.NORMAL);
+            } finally {
+                entityLock.getWaiters().decrementAndGet();
+                entityWaiters.decrementAndGet();
+            }
+            waitForGlobalUnlock(entityLock, state, locksHeld > 0, LockPriority.NORMAL);
+        }
+        onEntityLockAcquired(entityLock, state, true);
+        return LockResult.ACQUIRED;
+    }
+
+    /**
+     * Counts current thread as a waiter of the entity lock if limits allow it.
+     * @return null if thread is admitted to wait, otherwise the reason of rejection
+     */
+    private LockResult admitWaiter(EntityLock entityLock) {
+        int waiters = entityLock.getWaiters().incrementAndGet();
+        if (waiters > maxWaitersPerEntity) {
+            entityLock.getWaiters().decrementAndGet();
+            return LockResult.REJECTED_ENTITY_WAITERS;
+        }
+        if (entityWaiters.incrementAndGet() > maxWaiters) {
+            entityWaiters.decrementAndGet();
+            entityLock.getWaiters().decrementAndGet();
+            return LockResult.REJECTED_LOCKER_WAITERS;
+        }
+        // current holder and every waiter ahead are expected to hold the lock for an average time
+        long averageHoldNanos = entityLock.getAverageHoldNanos();
+        if (averageHoldNanos > 0 && averageHoldNanos > maxExpectedWaitNanos / waiters) {
+            entityWaiters.decrementAndGet();
+            entityLock.getWaiters().decrementAndGet();
+            return LockResult.REJECTED_EXPECTED_WAIT;
+        }
+        return null;
+    }
+
+    /**
+     * Acquires the entity lock counting current thread as a waiter while it's blocked.
+     */
+    private void acquireEntityLock(EntityLock entityLock, LockPriority priority) {
+        if (entityLock.tryLock()) {
+            return;
+        }
+        entityLock.getWaiters().incrementAndGet();
+        entityWaiters.incrementAndGet();
+        try {
+            waitForEntityLock(entityLock, priority);
+        } finally {
+            entityLock.getWaiters().decrementAndGet();
+            entityWaiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Global lock requester (of this locker or of its lock manager) doesn't wait for threads blocked on its own
+     * entity locks (see {@link #ownResources} and {@link LockManager#globalLock}),
+     * so such thread may get the entity lock when the requester releases it holding global lock -
+     * in this case gives the entity lock back and waits at the gates before locking it again.
+     * Must be called after the entity lock was acquired and counted at the gates.
+     * @param holdsEntityLocks whether current thread holds other entity locks of this locker
+     */
+    private void waitForGlobalUnlock(EntityLock entityLock, LockerThreadState state, boolean holdsEntityLocks,
+                                     LockPriority priority) {
+        while (entityLock.getHoldCount() == 1 && isGlobalLockedByOtherThread()) {
+            entityLock.unlock();
+            leaveGates(state);
+            enterGates(state, holdsEntityLocks);
+            acquireEntityLock(entityLock, priority);
+        }
+    }
+
+    private boolean isGlobalLockedByOtherThread() {
+        return gate.isGlobalLockedByOtherThread() || managerGate != null && managerGate.isGlobalLockedByOtherThread();
+    }
+
+    /**
+     * Blocks until the entity lock is acquired, blocked threads are granted the lock in priority order
+     * if it's needed, see {@link EntityLock#isPriorityOrdered}.
+     */
+    private void waitForEntityLock(EntityLock entityLock, LockPriority priority) {
+        long waitStart = System.nanoTime();
+        if (entityLock.isPriorityOrdered(priority)) {
+            PriorityWaitQueue queue = entityLock.getPriorityWaitQueue();
+            queue.enter(priority, priorityAgingNanos);
+            try {
+                entityLock.lock();
+            } finally {
+                queue.leave(priority);
+            }
+        } else {
+            entityLock.lock();
+        }
+        waitStats[priority.ordinal()].record(System.nanoTime() - waitStart);
+    }
+
+    private boolean tryAcquireEntityLock(EntityLock entityLock, long nanosTimeout) throws InterruptedException {
+        long waitStart = System.nanoTime();
+        long deadline = waitStart + nanosTimeout;
+        entityLock.getWaiters().incrementAndGet();
+        entityWaiters.incrementAndGet();
+        try {
+            boolean locked;
+            if (entityLock.isPriorityOrdered(LockPriority.NORMAL)) {
+                PriorityWaitQueue queue = entityLock.getPriorityWaitQueue();
+                if (!queue.tryEnter(LockPriority.NORMAL, priorityAgingNanos, deadline)) {
+                    return false;
+                }
+                try {
+                    locked = entityLock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } finally {
+                    queue.leave(LockPriority.NORMAL);
+                }
+            } else {
+                locked = entityLock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+            if (locked) {
+                waitStats[LockPriority.NORMAL.ordinal()].record(System.nanoTime() - waitStart);
+            }
+            return locked;
+        } finally {
+            entityLock.getWaiters().decrementAndGet();
+            entityWaiters.decrementAndGet();
         }
     }
 
     /**
      * Checks whether entity with id is locked.
+     * Doesn't create entity lock if it doesn't exist yet.
      * @param id entity id
      * @return true - if either entity lock or global lock is acquired by another thread
      *         false - otherwise
      */
     public boolean isLocked(K id) {
-        return globalLock.isLocked() || getOrCreateEntityLock(id).isLocked();
+        if (isGlobalLock()) {
+            return true;
+        }
+        ReentrantLock entityLock = entitiesLockingMap.get(tableKey(id));
+        return entityLock != null && entityLock.isLocked();
     }
 
     /**
@@ -99,6 +366,10 @@ public class EntityLocker<K> {
      * Also will be blocked if a global lock is already locked.
      * In this case the time of waiting for global lock will be subtracted from provided timeout.
      *
+     * With {@link EntityLockType#QUEUED} entity locks the waiting thread doesn't join the lock queue -
+     * it gets the lock only when nobody holds or waits for it, so under steady contention it may time out
+     * while threads queued by {@link #lock} keep getting the lock.
+     *
      * @param id entity id
      * @param timeout timeout duration
      * @param timeUnit timeout time unit
@@ -109,18 +380,55 @@ public class EntityLocker<K> {
         if (id == null) {
             throw new NullPointerException("Trying to lock entity with null ID");
         }
-        long before = System.nanoTime();
+        return tryLock(id, null, timeout, timeUnit);
+    }
+
+    /**
+     * Tries to acquire the entity lock using already known entity lock.
+     * @param id entity id
+     * @param entityLock entity lock or null if it should be found in the lock table
+     * @param timeout timeout duration
+     * @param timeUnit timeout time unit
+     * @return true - if lock was acquired
+     *         false - otherwise
+     */
+    boolean tryLock(K id, EntityLock entityLock, long timeout, TimeUnit timeUnit) {
+        // single deadline for both gate and entity lock waiting
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        LockerThreadState state = threadState.get();
+        if (entityLock == null) {
+            entityLock = getOrCreateEntityLock(id);
+        }
+        if (entityLock.tryLockBiased()) {
+            onEntityLockAcquired(entityLock, state, false);
+            return true;
+        }
         try {
-            globalLock.tryLock(timeout, timeUnit);
-            long nanosTimeoutLeft = System.nanoTime() - before - timeUnit.toNanos(timeout);
-            boolean locked = getOrCreateEntityLock(id).tryLock(nanosTimeoutLeft, timeUnit);
-            if (locked) entityLockCount.incrementAndGet();
-            return locked;
+            while (true) {
+                if (!tryEnterGates(state, countHeld(state) > 0, deadline)) {
+                    return false;
+                }
+                boolean locked = false;
+                try {
+                    locked = entityLock.tryLock() || tryAcquireEntityLock(entityLock, deadline - System.nanoTime());
+                } finally {
+                    if (!locked) leaveGates(state);
+                }
+                if (!locked) {
+                    return false;
+                }
+                if (entityLock.getHoldCount() == 1 && isGlobalLockedByOtherThread()) {
+                    // got the lock from global lock owner - see waitForGlobalUnlock()
+                    entityLock.unlock();
+                    leaveGates(state);
+                    continue;
+                }
+                onEntityLockAcquired(entityLock, state, true);
+                return true;
+            }
         } catch (InterruptedException e) {
             System.out.println("Thread was interrupted while trying to acquire the lock for entity id " + id);
             return false;
-        } finally {
-            globalLock.unlock();
         }
     }
 
@@ -129,46 +437,239 @@ public class EntityLocker<K> {
      * @param id entity id
      */
     public void unlock(K id) {
-        unlockLock.lock();
-        try {
-            Set<K> keysLocked = currentThreadKeysLocked.get();
-            ReentrantLock entityLock = getOrCreateEntityLock(id);
-            if (entityLock != null && entityLock.isLocked()) {
-                entityLock.unlock();
-                keysLocked.remove(id);
-                entityLockCount.decrementAndGet();
-            }
-            // if thread lock was escalated to global but all locks were released - reset the state
-            if (escalateGlobal.get() && keysLocked.size() == 0) {
-                globalLock.unlock();
-                escalateGlobal.set(false);
+        unlock(entitiesLockingMap.get(tableKey(id)));
+    }
+
+    /**
+     * Releases the entity lock.
+     * @param entityLock entity lock, may be null if entity was never locked
+     */
+    void unlock(EntityLock entityLock) {
+        LockerThreadState state = threadState.get();
+        if (entityLock != null && entityLock.isLocked()) {
+            LockProfiler profiler = this.profiler;
+            if (profiler != null && entityLock.getHoldCount() == 1) {
+                profiler.onReleasing(entityLock);
             }
+            // biased lock is counted at the gates by its bias, not by holds
+            boolean biased = entityLock.isHeldBiased()
+                    || entityLock instanceof BiasedEntityLock && tryBias((BiasedEntityLock) entityLock);
+            entityLock.unlock();
+            // entity is not counted as locked by the thread until all reentrant locks are released
+            if (entityLock.getHoldCount() == 0) {
+                state.locksHeld.remove(entityLock);
+                if (!biased) leaveGates(state);
+            }
+        }
+        // if thread lock was escalated to global but all locks were released - reset the state
+        if (state.escalatedLockers.contains(this) && countHeld(state) == 0) {
+            state.escalatedLockers.remove(this);
+            escalatedThreads.remove(Thread.currentThread());
+            releaseGlobalLock(state);
+        }
+    }
+
+    /**
+     * Counts the entity lock as held by the current thread if it was acquired for the first time.
+     * Reentrant acquiring gives back the count taken at the gates - the lock is already counted.
+     */
+    private void onEntityLockAcquired(EntityLock entityLock, LockerThreadState state, boolean counted) {
+        if (entityLock.getHoldCount() == 1) {
+            state.locksHeld.add(entityLock);
+            LockProfiler profiler = this.profiler;
+            if (profiler != null) {
+                profiler.onAcquired(entityLock);
+            }
+        } else if (counted) {
+            leaveGates(state);
+        }
+    }
+
+    /**
+     * Biases the lock to current thread if it's acquired by it repeatedly and global lock is not requested.
+     * Must be called by the owner of the underlying lock before the last hold is released.
+     * Gate count taken for the hold is kept by the bias.
+     * @return true if lock was biased
+     */
+    private boolean tryBias(BiasedEntityLock entityLock) {
+        if (entityLock.getHoldCount() != 1 || !entityLock.shouldBias()) {
+            return false;
+        }
+        // lock is registered before global lock activity is checked, while global lock requester does it
+        // in the opposite order - so either the bias is not set or the requester revokes it
+        biasedLocks.add(entityLock);
+        if (gate.hasGlobalActivity()) {
+            biasedLocks.remove(entityLock);
+            return false;
+        }
+        entityLock.bias();
+        return true;
+    }
+
+    /**
+     * Called by the thread which revoked the bias of the lock - gives back the gate count kept by the bias.
+     */
+    void onBiasRevoked(BiasedEntityLock entityLock) {
+        biasedLocks.remove(entityLock);
+        gate.leave(1);
+    }
+
+    /**
+     * Revokes biases of all biased locks except the ones held by current thread, called by global lock requester.
+     */
+    private void revokeBiases() {
+        for (BiasedEntityLock entityLock : biasedLocks) {
+            entityLock.revokeForGlobalLock();
+        }
+    }
+
+    /**
+     * Passes the lock manager gate (if the locker is a namespace) and own gate, counting one resource at each.
+     * Manager gate is always passed first, so lock manager global lock waits for threads blocked at namespace gates.
+     * @param holdsEntityLocks whether current thread already holds entity locks of this locker
+     */
+    private void enterGates(LockerThreadState state, boolean holdsEntityLocks) {
+        if (managerGate != null) {
+            managerGate.enter(state.managerCount > 0, 1);
+            state.managerCount++;
+        }
+        gate.enter(holdsEntityLocks, 1);
+    }
+
+    /**
+     * Same as {@link #enterGates} but waits until deadline at most.
+     * @return true if passed both gates, false if deadline has come
+     */
+    private boolean tryEnterGates(LockerThreadState state, boolean holdsEntityLocks, long deadline) throws InterruptedException {
+        if (managerGate != null) {
+            if (!managerGate.tryEnter(state.managerCount > 0, 1, deadline)) {
+                return false;
+            }
+            state.managerCount++;
+        }
+        boolean entered = false;
+        try {
+            entered = gate.tryEnter(holdsEntityLocks, 1, deadline);
         } finally {
-            unlockLock.unlock();
+            if (!entered) leaveManagerGate(state);
+        }
+        return entered;
+    }
+
+    /**
+     * Passes both gates without locking if there is no global lock activity.
+     * @return true if passed
+     */
+    private boolean tryEnterGatesFast(LockerThreadState state) {
+        if (managerGate != null) {
+            if (!managerGate.tryEnterFast(1)) {
+                return false;
+            }
+            state.managerCount++;
+        }
+        if (gate.tryEnterFast(1)) {
+            return true;
+        }
+        leaveManagerGate(state);
+        return false;
+    }
+
+    private void leaveGates(LockerThreadState state) {
+        gate.leave(1);
+        leaveManagerGate(state);
+    }
+
+    private void leaveManagerGate(LockerThreadState state) {
+        if (managerGate != null) {
+            state.managerCount--;
+            managerGate.leave(1);
+        }
+    }
+
+    /**
+     * Resources global lock requested by current thread doesn't wait for: entity locks of this locker held
+     * by current thread and threads blocked on them - those can't proceed until current thread releases its locks,
+     * waiting for them would deadlock (e.g. on lock escalation).
+     * @return number of resources
+     */
+    private long ownResources(LockerThreadState state) {
+        long resources = 0;
+        for (EntityLock entityLock : state.locksHeld) {
+            if (entityLock.getEntityLocker() == this) {
+                resources += 1 + entityLock.getWaiters().get();
+            }
         }
+        return resources;
+    }
+
+    /**
+     * @return number of entity locks of this locker held by current thread
+     */
+    private int countHeld(LockerThreadState state) {
+        return lockManager == null ? state.locksHeld.size() : state.countHeld(this);
     }
 
     /**
      * Global exclusive lock for all entity ids.
      * The lock will wait until all other entity id locks are released.
-     * After that it will try to acquire the global lock.
+     * Whether new entity locks can be acquired meanwhile depends on {@link GlobalLockFairness}.
+     * Threads waiting for global lock acquire it in the order of arrival, waiting with {@link LockPriority#NORMAL} priority.
+     * The lock is reentrant.
+     *
+     * Global lock of a {@link LockManager} namespace locks only entities of the namespace,
+     * it's counted as one resource by the manager-wide global lock.
      */
     public void globalLock() {
-        // acquire lock before global so all threads will finish their code and wait for this lock
-        beforeGlobalLock.lock();
-        // consider amount of acquired locks minus locks hold by current thread
-        long locksRemaining = entityLockCount.get() - currentThreadKeysLocked.get().size();
-        // wait until all threads release their entity locks
-        while (locksRemaining != 0) {
-            globalLock.unlock();
-            // too much logging so commented out
-//            System.out.println("global lock waiting for other locks to unlock, remaining locks: " + locksRemaining);
-            globalLock.lock();
-            locksRemaining = entityLockCount.get() - currentThreadKeysLocked.get().size();
+        globalLock(LockPriority.NORMAL);
+    }
+
+    /**
+     * Acquires global lock like {@link #globalLock()}, threads waiting for global lock acquire it
+     * in priority order with aging, see {@link LockPriority}.
+     * @param priority priority of current thread among global lock waiters
+     */
+    public void globalLock(LockPriority priority) {
+        LockerThreadState state = threadState.get();
+        long waitStart = System.nanoTime();
+        boolean reentrant = gate.isGlobalLockedByCurrentThread();
+        if (managerGate != null) {
+            managerGate.enter(state.managerCount > 0, 1);
+            state.managerCount++;
+        }
+        gate.globalLock(() -> ownResources(state), priority);
+        if (!reentrant) {
+            globalWaitStats[priority.ordinal()].record(System.nanoTime() - waitStart);
+        }
+    }
+
+    /**
+     * Tries to acquire global lock waiting not longer than timeout.
+     * @param timeout timeout duration
+     * @param timeUnit timeout time unit
+     * @return true - if lock was acquired
+     *         false - otherwise
+     */
+    public boolean tryGlobalLock(long timeout, TimeUnit timeUnit) {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        LockerThreadState state = threadState.get();
+        try {
+            if (managerGate != null) {
+                if (!managerGate.tryEnter(state.managerCount > 0, 1, deadline)) {
+                    return false;
+                }
+                state.managerCount++;
+            }
+            boolean locked = false;
+            try {
+                locked = gate.tryGlobalLock(() -> ownResources(state), deadline);
+            } finally {
+                if (!locked) leaveManagerGate(state);
+            }
+            return locked;
+        } catch (InterruptedException e) {
+            System.out.println("Thread was interrupted while trying to acquire the global lock");
+            return false;
         }
-        // release before global lock but global lock is already acquired
-        // by thread at this point and no more threads can lock any entity id
-        beforeGlobalLock.unlock();
     }
 
     /**
@@ -176,25 +677,254 @@ public class EntityLocker<K> {
      * If there was a global lock escalation - unlock all locks.
      */
     public void globalUnlock() {
-        unlockLock.lock();
-        try {
-            if (escalateGlobal.get()) {
-                Set<K> keysLocked = currentThreadKeysLocked.get();
-                keysLocked.forEach(key -> getOrCreateEntityLock(key).unlock());
-                keysLocked.clear();
+        LockerThreadState state = threadState.get();
+        if (state.escalatedLockers.remove(this)) {
+            Iterator<EntityLock> iterator = state.locksHeld.iterator();
+            while (iterator.hasNext()) {
+                EntityLock entityLock = iterator.next();
+                if (entityLock.getEntityLocker() == this) {
+                    LockProfiler profiler = this.profiler;
+                    if (profiler != null) {
+                        profiler.onReleasing(entityLock);
+                    }
+                    boolean biased = entityLock.isHeldBiased();
+                    while (entityLock.isHeldByCurrentThread()) {
+                        entityLock.unlock();
+                    }
+                    iterator.remove();
+                    if (!biased) leaveGates(state);
+                }
             }
-            globalLock.unlock();
-        } finally {
-            unlockLock.unlock();
+            escalatedThreads.remove(Thread.currentThread());
         }
+        releaseGlobalLock(state);
+    }
+
+    private void releaseGlobalLock(LockerThreadState state) {
+        gate.globalUnlock();
+        leaveManagerGate(state);
     }
 
     /**
-     * Checks whether the global lock is currently locked.
+     * Checks whether the global lock (or lock manager global lock) is currently locked.
      * @return true if locked, false otherwise
      */
     public boolean isGlobalLock() {
-        return globalLock.isLocked();
+        return gate.isGlobalLocked() || managerGate != null && managerGate.isGlobalLocked();
+    }
+
+    /**
+     * Creates a condition bound to the entity lock, same as {@link ReentrantLock#newCondition()}.
+     * Condition can be awaited and signalled only by the thread holding the entity lock.
+     * Awaiting threads don't prevent the global lock from being acquired.
+     * Not supported for {@link EntityLockType#QUEUED} entity locks.
+     * @param id entity id
+     * @return new condition of the entity lock
+     */
+    public Condition newCondition(K id) {
+        EntityLock entityLock = getOrCreateEntityLock(id);
+        return new EntityCondition(this, entityLock, entityLock.newCondition());
+    }
+
+    /**
+     * Waits until the entity changes to the state accepted by predicate.
+     * Must be called by the thread holding the entity lock - the lock is released while waiting
+     * and acquired again before the predicate is checked. Other threads notify about changes with {@link #signalAll}.
+     * @param id entity id
+     * @param predicate checks the state of entity, called under the entity lock
+     * @param timeout max waiting time
+     * @param timeUnit timeout time unit
+     * @return true - if predicate became true
+     *         false - if timeout elapsed
+     * @throws InterruptedException if thread was interrupted while waiting
+     */
+    public boolean await(K id, BooleanSupplier predicate, long timeout, TimeUnit timeUnit) throws InterruptedException {
+        EntityLock entityLock = getHeldEntityLock(id);
+        Condition changed = new EntityCondition(this, entityLock, entityLock.getChangedCondition());
+        long nanosLeft = timeUnit.toNanos(timeout);
+        while (!predicate.getAsBoolean()) {
+            if (nanosLeft <= 0) {
+                return false;
+            }
+            nanosLeft = changed.awaitNanos(nanosLeft);
+        }
+        return true;
+    }
+
+    /**
+     * Wakes up all threads waiting for entity changes in {@link #await}.
+     * Must be called by the thread holding the entity lock, usually right after the entity was changed.
+     * @param id entity id
+     */
+    public void signalAll(K id) {
+        getHeldEntityLock(id).getChangedCondition().signalAll();
+    }
+
+    private EntityLock getHeldEntityLock(K id) {
+        EntityLock entityLock = entitiesLockingMap.get(tableKey(id));
+        if (entityLock == null || !entityLock.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("Entity lock for id " + id + " is not held by current thread");
+        }
+        return entityLock;
+    }
+
+    /**
+     * Uncounts the entity lock before current thread releases it awaiting a condition.
+     */
+    void beforeAwait(EntityLock entityLock) {
+        if (!entityLock.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("Entity lock is not held by current thread");
+        }
+        leaveGates(threadState.get());
+    }
+
+    /**
+     * Counts the entity lock again after it was given back by the condition.
+     * If global lock is held or requested meanwhile - releases the entity lock, waits at the gates and locks it again.
+     */
+    void afterAwait(EntityLock entityLock) {
+        entityLock.onReacquired();
+        LockerThreadState state = threadState.get();
+        if (tryEnterGatesFast(state)) {
+            return;
+        }
+        int holdCount = entityLock.getHoldCount();
+        for (int i = 0; i < holdCount; i++) {
+            entityLock.unlock();
+        }
+        // the awaited lock is still in the list of held locks
+        enterGates(state, countHeld(state) > 1);
+        acquireEntityLock(entityLock, LockPriority.NORMAL);
+        waitForGlobalUnlock(entityLock, state, countHeld(state) > 1, LockPriority.NORMAL);
+        for (int i = 1; i < holdCount; i++) {
+            entityLock.lock();
+        }
+    }
+
+    /**
+     * Locks the entity and returns a guard which unlocks it on close, to be used in try-with-resources.
+     * @param id entity id
+     * @return current thread's lock guard
+     */
+    public LockGuard<K> acquire(K id) {
+        lock(id);
+        return currentThreadGuard.get().pushEntity(id);
+    }
+
+    /**
+     * Locks all entities in the iteration order of collection and returns a guard which unlocks all of them on close.
+     * To avoid deadlocks the entities should be always locked in the same order.
+     * If locking of any entity fails already locked ones are unlocked.
+     * @param ids entity ids
+     * @return current thread's lock guard
+     */
+    public LockGuard<K> acquire(Collection<K> ids) {
+        int locked = 0;
+        try {
+            for (K id : ids) {
+                lock(id);
+                locked++;
+            }
+        } catch (RuntimeException | Error e) {
+            for (K id : ids) {
+                if (locked-- == 0) break;
+                unlock(id);
+            }
+            throw e;
+        }
+        return currentThreadGuard.get().pushEntities(ids);
+    }
+
+    /**
+     * Acquires the global lock and returns a guard which releases it on close.
+     * @return current thread's lock guard
+     */
+    public LockGuard<K> acquireGlobal() {
+        globalLock();
+        return currentThreadGuard.get().pushGlobal();
+    }
+
+    /**
+     * Runs action for every entity id under its entity lock, in parallel in the common fork-join pool.
+     * See {@link #parallelForEach(Collection, Consumer, ForkJoinPool)}.
+     * @param ids entity ids
+     * @param action action to run for each entity id
+     * @return processing statistics
+     */
+    public BulkResult parallelForEach(Collection<K> ids, Consumer<K> action) {
+        return parallelForEach(ids, action, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Runs action for every entity id under its entity lock, in parallel in the fork-join pool.
+     *
+     * Ids are split into ranges processed by pool workers. Each worker locks several ids at once
+     * (up to global escalation threshold, so it never escalates to global lock) and runs the action for them.
+     * Workers wait only for the first lock of a batch and take the rest only if they are free,
+     * so bulk processing doesn't deadlock with other threads locking the same entities.
+     * Caller should not hold entity locks as it may run part of the work itself.
+     *
+     * @param ids entity ids, duplicates are processed once
+     * @param action action to run for each entity id
+     * @param pool pool to run the processing in
+     * @return processing statistics
+     */
+    public BulkResult parallelForEach(Collection<K> ids, Consumer<K> action, ForkJoinPool pool) {
+        List<K> distinctIds = new ArrayList<>(new LinkedHashSet<>(ids));
+        int batchSize = Math.max(1, globalEscalationThreshold);
+        AtomicLong processedCount = new AtomicLong();
+        AtomicLong batchCount = new AtomicLong();
+        long before = System.nanoTime();
+        pool.invoke(new BulkLockTask<>(this, distinctIds, 0, distinctIds.size(), batchSize, action, processedCount, batchCount));
+        return new BulkResult(processedCount.get(), batchCount.get(), System.nanoTime() - before);
+    }
+
+    /**
+     * Creates a handle pinned to the entity lock of id.
+     * Locking through the handle doesn't look up the lock table and doesn't hash the key,
+     * so it's cheaper for entities which are locked many times.
+     * Handle is not registered anywhere - it lives as long as caller references it.
+     * @param id entity id
+     * @return lock handle for entity
+     */
+    public LockHandle<K> handle(K id) {
+        if (id == null) {
+            throw new NullPointerException("Trying to create lock handle for entity with null ID");
+        }
+        return new LockHandle<>(this, id, getOrCreateEntityLock(id));
+    }
+
+    /**
+     * Takes a snapshot of the lock table: locked entities with their owners, queue lengths and hold durations,
+     * global lock and escalation state.
+     * Doesn't block any locking operations and doesn't create entity locks, so it's safe to call under load.
+     * @return snapshot of locker state
+     */
+    public EntityLockerSnapshot<K> snapshot() {
+        long now = System.nanoTime();
+        List<EntityLockInfo<K>> lockedEntities = new ArrayList<>();
+        int[] tableSize = new int[1];
+        entitiesLockingMap.forEach((key, entityLock) -> {
+            // lock table of lock manager contains entity locks of all namespaces
+            if (entityLock.getEntityLocker() != this) {
+                return;
+            }
+            tableSize[0]++;
+            Thread owner = entityLock.getOwner();
+            if (owner != null) {
+                lockedEntities.add(new EntityLockInfo<>(entityId(key), owner, entityLock.getWaiters().get(),
+                        holdDuration(entityLock, now)));
+            }
+        });
+        List<String> escalatedThreadNames = new ArrayList<>();
+        escalatedThreads.forEach(thread -> escalatedThreadNames.add(thread.getName()));
+        return new EntityLockerSnapshot<>(now, lockedEntities, tableSize[0], gate.getEntityLockCount(),
+                gate.getGlobalOwner(), gate.getGlobalWaiters(), holdDuration(gate.getGlobalLock(), now), escalatedThreadNames);
+    }
+
+    private static long holdDuration(EntityLock lock, long now) {
+        long lockedSince = lock.getLockedSinceNanos();
+        return lockedSince == 0 ? 0 : now - lockedSince;
     }
 
     /**
@@ -203,18 +933,224 @@ public class EntityLocker<K> {
      * @param id - id of locking entity
      * @return entity lock
      */
-    private ReentrantLock getOrCreateEntityLock(K id) {
+    private EntityLock getOrCreateEntityLock(K id) {
+        Object key = tableKey(id);
+        // existing locks are found without taking the creation lock
+        EntityLock entityLock = entitiesLockingMap.get(key);
+        if (entityLock != null) {
+            return entityLock;
+        }
         createEntityLockLock.lock();
-        ReentrantLock entityLock = entitiesLockingMap.get(id);
+        entityLock = entitiesLockingMap.get(key);
         if (entityLock == null) {
-            entityLock = new ReentrantLock();
-            entitiesLockingMap.put(id, entityLock);
+            entityLock = newEntityLock();
+            entitiesLockingMap.put(key, entityLock);
         }
         createEntityLockLock.unlock();
         return entityLock;
     }
 
+    private EntityLock newEntityLock() {
+        switch (entityLockType) {
+            case QUEUED:
+                return new QueuedEntityLock(this);
+            case BIASED:
+                return new BiasedEntityLock(this);
+            default:
+                return new EntityLock(this);
+        }
+    }
+
+    /**
+     * @param id entity id
+     * @return key of the entity in the lock table
+     */
+    private Object tableKey(K id) {
+        return lockManager == null ? id : new EntityKey<>(this, id);
+    }
+
+    @SuppressWarnings("unchecked")
+    private K entityId(Object tableKey) {
+        return lockManager == null ? (K) tableKey : ((EntityKey<K>) tableKey).getId();
+    }
+
+    /**
+     * Creates a key of the entity for locking together with entities of other namespaces with {@link LockManager#lockAll}.
+     * @param id entity id
+     * @return entity key qualified by this locker
+     */
+    public EntityKey<K> key(K id) {
+        if (id == null) {
+            throw new NullPointerException("Trying to create key for entity with null ID");
+        }
+        return new EntityKey<>(this, id);
+    }
+
+    /**
+     * @return namespace name in the lock manager, null for a standalone locker
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return lock manager hosting the locker, null for a standalone locker
+     */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
     public void setGlobalEscalationThreshold(int globalEscalationThreshold) {
         this.globalEscalationThreshold = globalEscalationThreshold;
     }
+
+    /**
+     * Sets max number of threads waiting for the same entity in {@link #lockOrReject}, unlimited by default.
+     * @param maxWaitersPerEntity max number of waiters
+     */
+    public void setMaxWaitersPerEntity(int maxWaitersPerEntity) {
+        this.maxWaitersPerEntity = maxWaitersPerEntity;
+    }
+
+    /**
+     * Sets max number of threads waiting for any entity in {@link #lockOrReject}, unlimited by default.
+     * @param maxWaiters max number of waiters
+     */
+    public void setMaxWaiters(int maxWaiters) {
+        this.maxWaiters = maxWaiters;
+    }
+
+    /**
+     * Sets max expected wait in {@link #lockOrReject}, unlimited by default.
+     * Expected wait is the average hold time of entity lock multiplied by number of threads ahead.
+     * @param maxExpectedWait max expected wait duration
+     * @param timeUnit duration time unit
+     */
+    public void setMaxExpectedWait(long maxExpectedWait, TimeUnit timeUnit) {
+        this.maxExpectedWaitNanos = timeUnit.toNanos(maxExpectedWait);
+    }
+
+    /**
+     * @param reason rejection reason
+     * @return number of {@link #lockOrReject} calls rejected with the reason
+     */
+    public long getRejectedCount(LockResult reason) {
+        return rejectedCounts.get(reason.ordinal());
+    }
+
+    /**
+     * @return number of entity locks currently biased to some thread, see {@link EntityLockType#BIASED}
+     */
+    public int getBiasedLockCount() {
+        return biasedLocks.size();
+    }
+
+    /**
+     * @return number of threads currently blocked waiting for entity locks
+     */
+    public int getEntityWaiters() {
+        return entityWaiters.get();
+    }
+
+    /**
+     * Sets implementation of entity locks created after this call, {@link EntityLockType#REENTRANT} by default.
+     * @param entityLockType entity lock type
+     * @throws UnsupportedOperationException if biased locks are requested for a namespace of {@link LockManager}
+     */
+    public void setEntityLockType(EntityLockType entityLockType) {
+        if (entityLockType == EntityLockType.BIASED && lockManager != null) {
+            throw new UnsupportedOperationException("Biased entity locks are not supported by lock manager namespaces");
+        }
+        this.entityLockType = entityLockType;
+    }
+
+    /**
+     * Enables hold time profiling of entity locks, disabled by default.
+     * @param profiler profiler collecting hold times or null to disable profiling
+     */
+    public void setProfiler(LockProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public LockProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Sets how much a waiter is delayed per priority class below {@link LockPriority#HIGH}, 100 ms by default.
+     * Waiter of lower class goes ahead of higher class waiters which arrived later than its delay has passed.
+     * @param priorityAging delay per priority class
+     * @param timeUnit delay time unit
+     */
+    public void setPriorityAging(long priorityAging, TimeUnit timeUnit) {
+        if (priorityAging < 0) {
+            throw new IllegalArgumentException("Priority aging must not be negative: " + priorityAging);
+        }
+        // keep virtual arrival times far from overflow
+        long priorityAgingNanos = Math.min(timeUnit.toNanos(priorityAging), Long.MAX_VALUE / 8);
+        this.priorityAgingNanos = priorityAgingNanos;
+        gate.setPriorityAgingNanos(priorityAgingNanos);
+    }
+
+    /**
+     * @param priority priority class
+     * @return wait times of entity lock acquisitions of the class which blocked
+     */
+    public WaitStatistics getWaitStatistics(LockPriority priority) {
+        return waitStats[priority.ordinal()].toStatistics();
+    }
+
+    /**
+     * @param priority priority class
+     * @return wait times of all (not reentrant) global lock acquisitions of the class, including escalations
+     */
+    public WaitStatistics getGlobalWaitStatistics(LockPriority priority) {
+        return globalWaitStats[priority.ordinal()].toStatistics();
+    }
+
+    public void setGlobalLockFairness(GlobalLockFairness globalLockFairness) {
+        gate.setGlobalLockFairness(globalLockFairness);
+    }
+
+    /**
+     * Sets how many new entity lockers may pass while global lock is requested,
+     * used with {@link GlobalLockFairness#BOUNDED_BYPASS}.
+     * @param maxGlobalBypass max number of entity lockers
+     */
+    public void setMaxGlobalBypass(int maxGlobalBypass) {
+        gate.setMaxGlobalBypass(maxGlobalBypass);
+    }
+
+    private static WaitStats[] newWaitStats() {
+        WaitStats[] stats = new WaitStats[LockPriority.values().length];
+        for (LockPriority priority : LockPriority.values()) {
+            stats[priority.ordinal()] = new WaitStats(priority);
+        }
+        return stats;
+    }
+
+    private static class WaitStats {
+
+        private final LockPriority priority;
+
+        private final LongAdder waitCount = new LongAdder();
+
+        private final LongAdder totalWaitNanos = new LongAdder();
+
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        WaitStats(LockPriority priority) {
+            this.priority = priority;
+        }
+
+        void record(long waitNanos) {
+            waitCount.increment();
+            totalWaitNanos.add(waitNanos);
+            maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        }
+
+        WaitStatistics toStatistics() {
+            return new WaitStatistics(priority, waitCount.sum(), totalWaitNanos.sum(), maxWaitNanos.get());
+        }
+    }
 }
@@ -0,0 +1,110 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable state of {@link EntityLocker} lock table taken by {@link EntityLocker#snapshot()}.
+ *
+ * Snapshot is taken without blocking any locking operations, so every entity lock is captured
+ * at a slightly different moment - it's consistent per entity, not across the whole table.
+ */
+public class EntityLockerSnapshot<K> {
+
+    private final long timestampNanos;
+
+    private final List<EntityLockInfo<K>> lockedEntities;
+
+    private final int tableSize;
+
+    private final long entityLockCount;
+
+    private final boolean globalLocked;
+
+    private final String globalOwnerThreadName;
+
+    private final int globalQueueLength;
+
+    private final long globalHoldDurationNanos;
+
+    private final List<String> escalatedThreadNames;
+
+    EntityLockerSnapshot(long timestampNanos, List<EntityLockInfo<K>> lockedEntities, int tableSize, long entityLockCount,
+                         Thread globalOwner, int globalQueueLength, long globalHoldDurationNanos,
+                         List<String> escalatedThreadNames) {
+        this.timestampNanos = timestampNanos;
+        this.lockedEntities = Collections.unmodifiableList(lockedEntities);
+        this.tableSize = tableSize;
+        this.entityLockCount = entityLockCount;
+        this.globalLocked = globalOwner != null;
+        this.globalOwnerThreadName = globalOwner == null ? null : globalOwner.getName();
+        this.globalQueueLength = globalQueueLength;
+        this.globalHoldDurationNanos = globalHoldDurationNanos;
+        this.escalatedThreadNames = Collections.unmodifiableList(escalatedThreadNames);
+    }
+
+    /**
+     * @return System.nanoTime() when the snapshot was taken
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * @return entities which were locked at the moment of snapshot
+     */
+    public List<EntityLockInfo<K>> getLockedEntities() {
+        return lockedEntities;
+    }
+
+    /**
+     * @return number of entity locks in the lock table (locked or not)
+     */
+    public int getTableSize() {
+        return tableSize;
+    }
+
+    public long getEntityLockCount() {
+        return entityLockCount;
+    }
+
+    public boolean isGlobalLocked() {
+        return globalLocked;
+    }
+
+    public String getGlobalOwnerThreadName() {
+        return globalOwnerThreadName;
+    }
+
+    public int getGlobalQueueLength() {
+        return globalQueueLength;
+    }
+
+    public long getGlobalHoldDurationNanos() {
+        return globalHoldDurationNanos;
+    }
+
+    /**
+     * @return names of threads which escalated their entity locks to global lock
+     */
+    public List<String> getEscalatedThreadNames() {
+        return escalatedThreadNames;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("EntityLockerSnapshot{tableSize=").append(tableSize)
+                .append(", entityLockCount=").append(entityLockCount)
+                .append(", globalLocked=").append(globalLocked);
+        if (globalLocked) {
+            sb.append(", globalOwner='").append(globalOwnerThreadName).append('\'')
+                    .append(", globalHoldDurationNanos=").append(globalHoldDurationNanos);
+        }
+        sb.append(", globalQueueLength=").append(globalQueueLength)
+                .append(", escalatedThreads=").append(escalatedThreadNames)
+                .append(", lockedEntities=").append(lockedEntities)
+                .append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,380 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keyed semaphore - same as {@link EntityLocker} but allows up to N concurrent holders per entity id
+ * instead of strict mutual exclusion, e.g. to throttle operations per tenant.
+ *
+ * Global lock and escalation work the same as in {@link EntityLocker}: global lock waits until all
+ * permits are returned, and a thread holding permits of too many entities escalates to global lock.
+ * Permits must be released by the thread which acquired them.
+ *
+ * Entity semaphore is removed from the table as soon as all its permits are returned and nobody waits for them.
+ */
+public class EntitySemaphore<K> {
+
+    /* Map of entity semaphores. Entry exists only while some thread holds or waits for permits. */
+    private final Map<K, Entry> entitiesSemaphoreMap = new ConcurrentHashMap<>();
+
+    /* Global lock and the gate entity acquirers pass before acquiring permits. Gate counts permits. */
+    private final GlobalLockGate gate = new GlobalLockGate();
+
+    /* Permits held by current thread by entity id. */
+    private final ThreadLocal<Map<K, int[]>> currentThreadPermitsHeld = ThreadLocal.withInitial(HashMap::new);
+
+    private final ThreadLocal<Boolean> escalateGlobal = ThreadLocal.withInitial(() -> false);
+
+    private final int permitsPerEntity;
+
+    /* Whether entity semaphores grant permits in FIFO order. */
+    private final boolean fair;
+
+    private int globalEscalationThreshold = 3;
+
+    /**
+     * Creates non fair entity semaphores.
+     * @param permitsPerEntity max number of permits which can be held for one entity at the same time
+     */
+    public EntitySemaphore(int permitsPerEntity) {
+        this(permitsPerEntity, false);
+    }
+
+    /**
+     * @param permitsPerEntity max number of permits which can be held for one entity at the same time
+     * @param fair true - permits of an entity are granted in FIFO order, so acquiring many permits
+     *             isn't starved by threads constantly acquiring few of them, see {@link Semaphore#Semaphore(int, boolean)}
+     */
+    public EntitySemaphore(int permitsPerEntity, boolean fair) {
+        if (permitsPerEntity <= 0) {
+            throw new IllegalArgumentException("Number of permits per entity must be positive: " + permitsPerEntity);
+        }
+        this.permitsPerEntity = permitsPerEntity;
+        this.fair = fair;
+    }
+
+    /**
+     * Acquires permits of the entity, waiting until they are available.
+     * Will also be blocked if a global lock is currently locked (or requested, depending on {@link GlobalLockFairness}).
+     * @param id entity id
+     * @param permits number of permits
+     */
+    public void acquire(K id, int permits) {
+        checkArguments(id, permits);
+        if (escalateGlobal.get()) {
+            // if global escalated - don't acquire
+            System.out.println("Global escalated - won't acquire permits for id " + id);
+            return;
+        }
+        Map<K, int[]> permitsHeld = currentThreadPermitsHeld.get();
+        if (permitsHeld.size() >= globalEscalationThreshold) {
+            // escalate to global lock
+            escalateGlobal.set(true);
+            globalLock();
+            return;
+        }
+        Entry entry = reserve(id, permits);
+        gate.enter(!permitsHeld.isEmpty(), permits);
+        while (true) {
+            if (!tryBarge(id, entry, permits)) {
+                entry.waiting.addAndGet(permits);
+                try {
+                    entry.semaphore.acquireUninterruptibly(permits);
+                } finally {
+                    entry.waiting.addAndGet(-permits);
+                }
+            }
+            if (!gate.isGlobalLockedByOtherThread()) {
+                break;
+            }
+            // got permits returned by global lock owner - see ownResources()
+            entry.semaphore.release(permits);
+            gate.leave(permits);
+            gate.enter(!permitsHeld.isEmpty(), permits);
+        }
+        permitsHeld.computeIfAbsent(id, key -> new int[1])[0] += permits;
+    }
+
+    /**
+     * Tries to acquire permits of the entity waiting not longer than timeout.
+     * Time of waiting for global lock is included in the timeout.
+     * Escalates to global lock the same as {@link #acquire}, waiting for it not longer than timeout.
+     * @param id entity id
+     * @param permits number of permits
+     * @param timeout timeout duration
+     * @param timeUnit timeout time unit
+     * @return true - if permits were acquired
+     *         false - otherwise
+     */
+    public boolean tryAcquire(K id, int permits, long timeout, TimeUnit timeUnit) {
+        checkArguments(id, permits);
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        if (escalateGlobal.get()) {
+            // if global escalated - don't acquire
+            System.out.println("Global escalated - won't acquire permits for id " + id);
+            return true;
+        }
+        Map<K, int[]> permitsHeld = currentThreadPermitsHeld.get();
+        if (permitsHeld.size() >= globalEscalationThreshold) {
+            // escalate to global lock
+            if (!tryGlobalLock(deadline)) {
+                return false;
+            }
+            escalateGlobal.set(true);
+            return true;
+        }
+        Entry entry = reserve(id, permits);
+        boolean acquired = false;
+        try {
+            acquired = tryAcquirePermits(id, entry, permits, deadline);
+        } catch (InterruptedException e) {
+            System.out.println("Thread was interrupted while trying to acquire permits for entity id " + id);
+        } finally {
+            if (!acquired) unreserve(id, permits);
+        }
+        if (acquired) {
+            permitsHeld.computeIfAbsent(id, key -> new int[1])[0] += permits;
+        }
+        return acquired;
+    }
+
+    /**
+     * Returns permits of the entity acquired by current thread.
+     * @param id entity id
+     * @param permits number of permits
+     */
+    public void release(K id, int permits) {
+        checkArguments(id, permits);
+        Map<K, int[]> permitsHeld = currentThreadPermitsHeld.get();
+        int[] held = permitsHeld.get(id);
+        if (held != null) {
+            if (held[0] < permits) {
+                throw new IllegalMonitorStateException("Releasing " + permits + " permits of entity id " + id
+                        + " but current thread holds only " + held[0]);
+            }
+            held[0] -= permits;
+            if (held[0] == 0) {
+                permitsHeld.remove(id);
+            }
+            returnPermits(id, permits);
+        } else if (!escalateGlobal.get()) {
+            throw new IllegalMonitorStateException("Permits of entity id " + id + " are not held by current thread");
+        }
+        // if thread was escalated to global but all permits were released - reset the state
+        if (escalateGlobal.get() && permitsHeld.isEmpty()) {
+            escalateGlobal.set(false);
+            gate.globalUnlock();
+        }
+    }
+
+    /**
+     * Global exclusive lock for all entity ids.
+     * The lock will wait until all permits acquired by other threads are returned.
+     */
+    public void globalLock() {
+        gate.globalLock(this::ownResources, LockPriority.NORMAL);
+    }
+
+    /**
+     * Tries to acquire global lock waiting not longer than timeout.
+     * @param timeout timeout duration
+     * @param timeUnit timeout time unit
+     * @return true - if lock was acquired
+     *         false - otherwise
+     */
+    public boolean tryGlobalLock(long timeout, TimeUnit timeUnit) {
+        return tryGlobalLock(System.nanoTime() + timeUnit.toNanos(timeout));
+    }
+
+    private boolean tryGlobalLock(long deadline) {
+        try {
+            return gate.tryGlobalLock(this::ownResources, deadline);
+        } catch (InterruptedException e) {
+            System.out.println("Thread was interrupted while trying to acquire the global lock");
+            return false;
+        }
+    }
+
+    /**
+     * Releases the global lock.
+     * If there was a global lock escalation - returns all permits held by current thread.
+     */
+    public void globalUnlock() {
+        if (escalateGlobal.get()) {
+            Map<K, int[]> permitsHeld = currentThreadPermitsHeld.get();
+            permitsHeld.forEach((id, held) -> returnPermits(id, held[0]));
+            permitsHeld.clear();
+            escalateGlobal.set(false);
+        }
+        gate.globalUnlock();
+    }
+
+    public boolean isGlobalLock() {
+        return gate.isGlobalLocked();
+    }
+
+    /**
+     * @param id entity id
+     * @return number of permits of the entity which can be acquired now
+     */
+    public int availablePermits(K id) {
+        Entry entry = entitiesSemaphoreMap.get(id);
+        return entry == null ? permitsPerEntity : entry.semaphore.availablePermits();
+    }
+
+    /**
+     * @param id entity id
+     * @return number of permits of the entity awaited by threads which passed the gate
+     */
+    int getAwaitedPermits(K id) {
+        Entry entry = entitiesSemaphoreMap.get(id);
+        return entry == null ? 0 : entry.waiting.get();
+    }
+
+    /**
+     * @return number of entities which permits are held or awaited
+     */
+    public int getEntityCount() {
+        return entitiesSemaphoreMap.size();
+    }
+
+    public int getPermitsPerEntity() {
+        return permitsPerEntity;
+    }
+
+    public boolean isFair() {
+        return fair;
+    }
+
+    public void setGlobalEscalationThreshold(int globalEscalationThreshold) {
+        this.globalEscalationThreshold = globalEscalationThreshold;
+    }
+
+    public void setGlobalLockFairness(GlobalLockFairness globalLockFairness) {
+        gate.setGlobalLockFairness(globalLockFairness);
+    }
+
+    public void setMaxGlobalBypass(int maxGlobalBypass) {
+        gate.setMaxGlobalBypass(maxGlobalBypass);
+    }
+
+    private void returnPermits(K id, int permits) {
+        entitiesSemaphoreMap.get(id).semaphore.release(permits);
+        unreserve(id, permits);
+        gate.leave(permits);
+    }
+
+    /**
+     * Passes the gate and acquires permits of the entity waiting until deadline at most,
+     * gives the permits back while global lock is held by other thread, see {@link #ownResources}.
+     * @return true - if permits were acquired and counted at the gate
+     *         false - if deadline has come
+     */
+    private boolean tryAcquirePermits(K id, Entry entry, int permits, long deadline) throws InterruptedException {
+        Map<K, int[]> permitsHeld = currentThreadPermitsHeld.get();
+        while (gate.tryEnter(!permitsHeld.isEmpty(), permits, deadline)) {
+            boolean acquired = false;
+            try {
+                if (tryBarge(id, entry, permits)) {
+                    acquired = true;
+                } else {
+                    entry.waiting.addAndGet(permits);
+                    try {
+                        acquired = entry.semaphore.tryAcquire(permits, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    } finally {
+                        entry.waiting.addAndGet(-permits);
+                    }
+                }
+            } finally {
+                if (!acquired) gate.leave(permits);
+            }
+            if (!acquired) {
+                return false;
+            }
+            if (!gate.isGlobalLockedByOtherThread()) {
+                return true;
+            }
+            // got permits returned by global lock owner - see ownResources()
+            entry.semaphore.release(permits);
+            gate.leave(permits);
+        }
+        return false;
+    }
+
+    /**
+     * Thread already holding permits of the entity takes available permits without queueing:
+     * fair semaphore would otherwise park it behind a larger request which waits for its own permits.
+     * @return true - if permits were acquired
+     *         false - otherwise
+     */
+    private boolean tryBarge(K id, Entry entry, int permits) {
+        return currentThreadPermitsHeld.get().containsKey(id) && entry.semaphore.tryAcquire(permits);
+    }
+
+    /**
+     * Gets the entity semaphore, creating it if needed, and reserves permits in it
+     * so it's not removed from the table until they are given back with {@link #unreserve}.
+     */
+    private Entry reserve(K id, int permits) {
+        return entitiesSemaphoreMap.compute(id, (key, entry) -> {
+            if (entry == null) {
+                entry = new Entry(permitsPerEntity, fair);
+            }
+            entry.reserved += permits;
+            return entry;
+        });
+    }
+
+    /**
+     * Gives back reserved permits, removes entity semaphore when nobody holds or waits for its permits.
+     */
+    private void unreserve(K id, int permits) {
+        entitiesSemaphoreMap.computeIfPresent(id, (key, entry) -> {
+            entry.reserved -= permits;
+            return entry.reserved == 0 ? null : entry;
+        });
+    }
+
+    /**
+     * Permits global lock requested by current thread doesn't wait for: permits held by current thread
+     * and permits awaited on the same entities - those waiters can't proceed until current thread returns
+     * its permits, waiting for them would deadlock (e.g. on escalation).
+     * @return number of permits
+     */
+    private long ownResources() {
+        long permits = 0;
+        for (Map.Entry<K, int[]> held : currentThreadPermitsHeld.get().entrySet()) {
+            permits += held.getValue()[0] + entitiesSemaphoreMap.get(held.getKey()).waiting.get();
+        }
+        return permits;
+    }
+
+    private void checkArguments(K id, int permits) {
+        if (id == null) {
+            throw new NullPointerException("Trying to acquire permits of entity with null ID");
+        }
+        if (permits <= 0 || permits > permitsPerEntity) {
+            throw new IllegalArgumentException("Number of permits must be between 1 and " + permitsPerEntity + ": " + permits);
+        }
+    }
+
+    private static class Entry {
+
+        private final Semaphore semaphore;
+
+        /* Permits awaited by threads which passed the gate. */
+        private final AtomicInteger waiting = new AtomicInteger();
+
+        /* Permits held or awaited, guarded by the map bin (changed only in compute methods). */
+        private int reserved;
+
+        Entry(int permits, boolean fair) {
+            this.semaphore = new Semaphore(permits, fair);
+        }
+    }
+}
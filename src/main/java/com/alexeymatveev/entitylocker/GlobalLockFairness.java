@@ -0,0 +1,33 @@
+package com.alexeymatveev.entitylocker;
+
+/**
+ * Policy of {@link EntityLocker} which decides whether new entity lockers may pass
+ * while some thread is waiting for the global lock.
+ *
+ * In all policies threads which already hold entity locks are let through - global lock waits for
+ * their locks anyway, so blocking them would cause a deadlock.
+ * For the same reason threads requesting global lock while holding entity locks (e.g. on lock escalation)
+ * go ahead of other global lock waiters.
+ * Threads waiting for the global lock are served in {@link LockPriority} order.
+ */
+public enum GlobalLockFairness {
+
+    /**
+     * No new entity lockers pass while global lock is requested.
+     * Global lock waits only for entity locks held at the moment of request (plus locks taken by their holders),
+     * so its wait is bounded by the longest of those critical sections.
+     */
+    WRITER_PREFERENCE,
+
+    /**
+     * At most {@link EntityLocker#setMaxGlobalBypass} new entity lockers pass while global lock is requested,
+     * after that they wait as with {@link #WRITER_PREFERENCE}.
+     * Trades some global lock latency for entity lock throughput.
+     */
+    BOUNDED_BYPASS,
+
+    /**
+     * Entity lockers which arrived before the global lock request pass, later ones wait.
+     */
+    FIFO
+}
@@ -0,0 +1,481 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Global lock together with the gate which every entity locker passes before acquiring an entity resource
+ * (entity lock or semaphore permits).
+ *
+ * Gate counts resources held by all threads. Global lock is acquired only when no resources are held
+ * except the ones of the global lock requester itself. Whether new entity lockers may pass the gate
+ * while global lock is requested is decided by {@link GlobalLockFairness}.
+ * Threads waiting for global lock acquire it in {@link LockPriority} order.
+ */
+class GlobalLockGate {
+
+    /* Interval of rechecks by global lock requester holding resources - its own resources may change without signal. */
+    private static final long OWN_RESOURCES_RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /* Global lock which prevent any thread to acquire any entity lock until released.
+     * Locked only by global owner after all other entity resources are released. */
+    private final EntityLock globalLock = new EntityLock();
+
+    /* Guards global lock state below. */
+    private final ReentrantLock gateLock = new ReentrantLock();
+
+    /* Signalled when entity lockers waiting at the gate may pass. */
+    private final Condition entityTurn = gateLock.newCondition();
+
+    /* Signalled when threads waiting for global lock may acquire it. */
+    private final Condition globalTurn = gateLock.newCondition();
+
+    /* Thread which owns the global lock. Read without gate lock on the fast path. */
+    private volatile Thread globalOwner;
+
+    /* Number of threads waiting for global lock. Read without gate lock on the fast path. */
+    private volatile int globalWaiters;
+
+    /* Tickets of threads waiting for global lock in priority order. */
+    private final PriorityQueue<PriorityTicket> globalWaiterTickets = new PriorityQueue<>();
+
+    /* Tickets of entity lockers waiting at the gate in the order of arrival. */
+    private final Deque<Long> entityWaiterTickets = new ArrayDeque<>();
+
+    /* Orders global lock requests and entity lockers waiting at the gate. */
+    private long nextTicket;
+
+    /* Number of entity lockers passed the gate since the oldest global lock request. */
+    private int globalBypassCount;
+
+    /* Number of entity resources held (or being acquired) by all threads.
+     * Sharded on contention, every thread counts its resources in its own shard. Summed only under gate lock. */
+    private final ShardedCounter entityLockCount = new ShardedCounter();
+
+    private GlobalLockFairness globalLockFairness = GlobalLockFairness.WRITER_PREFERENCE;
+
+    private int maxGlobalBypass = 16;
+
+    /* Delay of global lock waiters per priority class, see LockPriority. */
+    private volatile long priorityAgingNanos = EntityLocker.DEFAULT_PRIORITY_AGING_NANOS;
+
+    /* Called by global lock requester after it's registered as a waiter, before waiting for resources. */
+    private volatile Runnable globalRequestListener;
+
+    /**
+     * Lets the thread pass to entity locking - waits while global lock is held or has priority.
+     * On return the resources are already counted.
+     * @param holdsEntityLocks whether current thread already holds entity resources
+     * @param count number of resources to count
+     */
+    void enter(boolean holdsEntityLocks, int count) {
+        if (tryEnterFast(count)) {
+            return;
+        }
+        gateLock.lock();
+        long ticket = addEntityWaiter();
+        try {
+            while (!canEnter(ticket, holdsEntityLocks)) {
+                entityTurn.awaitUninterruptibly();
+            }
+            onEntered(count);
+        } finally {
+            removeEntityWaiter(ticket);
+            gateLock.unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #enter} but waits until deadline at most.
+     * @param holdsEntityLocks whether current thread already holds entity resources
+     * @param count number of resources to count
+     * @param deadline System.nanoTime() based deadline
+     * @return true if passed the gate, false if deadline has come
+     */
+    boolean tryEnter(boolean holdsEntityLocks, int count, long deadline) throws InterruptedException {
+        if (tryEnterFast(count)) {
+            return true;
+        }
+        gateLock.lock();
+        long ticket = addEntityWaiter();
+        try {
+            while (!canEnter(ticket, holdsEntityLocks)) {
+                long nanosLeft = deadline - System.nanoTime();
+                if (nanosLeft <= 0) {
+                    return false;
+                }
+                entityTurn.awaitNanos(nanosLeft);
+            }
+            onEntered(count);
+            return true;
+        } finally {
+            removeEntityWaiter(ticket);
+            gateLock.unlock();
+        }
+    }
+
+    /**
+     * Passes the gate without locking if there is no global lock activity.
+     * Resources are counted first and global state is checked after, while global lock requester does it
+     * in the opposite order - so at least one of them sees the other.
+     * @param count number of resources to count
+     * @return true if passed
+     */
+    boolean tryEnterFast(int count) {
+        Thread owner = globalOwner;
+        if (owner == Thread.currentThread()) {
+            entityLockCount.add(count);
+            return true;
+        }
+        if (owner != null || globalWaiters != 0) {
+            return false;
+        }
+        entityLockCount.add(count);
+        if (globalOwner == null && globalWaiters == 0) {
+            return true;
+        }
+        // global lock was requested meanwhile - step back and wait at the gate
+        leave(count);
+        return false;
+    }
+
+    /* Must be called under gate lock. */
+    private boolean canEnter(long ticket, boolean holdsEntityLocks) {
+        Thread owner = globalOwner;
+        if (owner == Thread.currentThread()) {
+            return true;
+        }
+        if (owner != null) {
+            return false;
+        }
+        // global lock waits for resources of this thread anyway - don't block it to avoid deadlock
+        if (globalWaiters == 0 || holdsEntityLocks) {
+            return true;
+        }
+        switch (globalLockFairness) {
+            case BOUNDED_BYPASS:
+                return globalBypassCount < maxGlobalBypass;
+            case FIFO:
+                return ticket < oldestGlobalWaiterTicket();
+            default:
+                return false;
+        }
+    }
+
+    /* Must be called under gate lock. */
+    private long addEntityWaiter() {
+        long ticket = nextTicket++;
+        entityWaiterTickets.addLast(ticket);
+        return ticket;
+    }
+
+    /* Must be called under gate lock. */
+    private void removeEntityWaiter(long ticket) {
+        entityWaiterTickets.remove(ticket);
+        if (globalWaiters != 0) {
+            // FIFO global waiters may wait for this entity locker to pass
+            globalTurn.signalAll();
+        }
+    }
+
+    /* Must be called under gate lock. */
+    private long oldestGlobalWaiterTicket() {
+        long oldest = Long.MAX_VALUE;
+        for (PriorityTicket waiter : globalWaiterTickets) {
+            oldest = Math.min(oldest, waiter.getTicket());
+        }
+        return oldest;
+    }
+
+    /* Must be called under gate lock. */
+    private void onEntered(int count) {
+        entityLockCount.add(count);
+        if (globalWaiters != 0) {
+            globalBypassCount++;
+        }
+    }
+
+    /**
+     * Uncounts the resources and wakes up global lock waiters if there are any.
+     * @param count number of resources to uncount
+     */
+    void leave(int count) {
+        entityLockCount.add(-count);
+        if (globalWaiters != 0) {
+            gateLock.lock();
+            try {
+                globalTurn.signalAll();
+            } finally {
+                gateLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Acquires global lock with {@link LockPriority#NORMAL} priority, reentrant.
+     * @param ownCount number of resources held by current thread - global lock doesn't wait for them
+     */
+    void globalLock(long ownCount) {
+        globalLock(() -> ownCount, LockPriority.NORMAL);
+    }
+
+    /**
+     * Acquires global lock, reentrant.
+     * @param ownCount number of resources global lock doesn't wait for - held by current thread
+     *                 or by threads which can't proceed until current thread releases its resources
+     * @param priority priority of current thread among global lock waiters
+     */
+    void globalLock(LongSupplier ownCount, LockPriority priority) {
+        if (globalOwner == Thread.currentThread()) {
+            globalLock.lock();
+            return;
+        }
+        PriorityTicket ticket = registerGlobalWaiter(priority);
+        boolean interrupted = false;
+        gateLock.lock();
+        try {
+            long own;
+            while (!canAcquireGlobalLock(ticket, own = ownCount.getAsLong())) {
+                if (own == 0) {
+                    globalTurn.awaitUninterruptibly();
+                    continue;
+                }
+                try {
+                    globalTurn.awaitNanos(OWN_RESOURCES_RECHECK_NANOS);
+                } catch (InterruptedException e) {
+                    // global lock is not interruptible - remember the interrupt and keep waiting
+                    interrupted = true;
+                }
+            }
+            onGlobalLockAcquired(ticket);
+        } finally {
+            gateLock.unlock();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #globalLock(long)} but waits until deadline at most.
+     * @param ownCount number of resources held by current thread - global lock doesn't wait for them
+     * @param deadline System.nanoTime() based deadline
+     * @return true if global lock was acquired, false if deadline has come
+     */
+    boolean tryGlobalLock(long ownCount, long deadline) throws InterruptedException {
+        return tryGlobalLock(() -> ownCount, deadline);
+    }
+
+    /**
+     * Same as {@link #globalLock(LongSupplier, LockPriority)} with {@link LockPriority#NORMAL} priority
+     * but waits until deadline at most.
+     * @param ownCount number of resources global lock doesn't wait for
+     * @param deadline System.nanoTime() based deadline
+     * @return true if global lock was acquired, false if deadline has come
+     */
+    boolean tryGlobalLock(LongSupplier ownCount, long deadline) throws InterruptedException {
+        if (globalOwner == Thread.currentThread()) {
+            globalLock.lock();
+            return true;
+        }
+        PriorityTicket ticket = registerGlobalWaiter(LockPriority.NORMAL);
+        gateLock.lock();
+        try {
+            try {
+                long own;
+                while (!canAcquireGlobalLock(ticket, own = ownCount.getAsLong())) {
+                    long nanosLeft = deadline - System.nanoTime();
+                    if (nanosLeft <= 0) {
+                        removeGlobalWaiter(ticket);
+                        return false;
+                    }
+                    globalTurn.awaitNanos(own == 0 ? nanosLeft : Math.min(nanosLeft, OWN_RESOURCES_RECHECK_NANOS));
+                }
+            } catch (InterruptedException e) {
+                removeGlobalWaiter(ticket);
+                throw e;
+            }
+            onGlobalLockAcquired(ticket);
+            return true;
+        } finally {
+            gateLock.unlock();
+        }
+    }
+
+    /**
+     * Registers current thread as a global lock waiter and notifies the listener.
+     * Listener is called without gate lock - it may wait for other threads.
+     * @param priority priority of the waiter
+     * @return ticket of the waiter
+     */
+    private PriorityTicket registerGlobalWaiter(LockPriority priority) {
+        PriorityTicket ticket;
+        gateLock.lock();
+        try {
+            ticket = addGlobalWaiter(priority);
+        } finally {
+            gateLock.unlock();
+        }
+        Runnable listener = globalRequestListener;
+        if (listener != null) {
+            try {
+                listener.run();
+            } catch (RuntimeException | Error e) {
+                gateLock.lock();
+                try {
+                    removeGlobalWaiter(ticket);
+                } finally {
+                    gateLock.unlock();
+                }
+                throw e;
+            }
+        }
+        return ticket;
+    }
+
+    /* Must be called under gate lock. */
+    private PriorityTicket addGlobalWaiter(LockPriority priority) {
+        PriorityTicket ticket = new PriorityTicket(nextTicket++, priority, priorityAgingNanos);
+        globalWaiterTickets.add(ticket);
+        // written before reading entityLockCount - see tryEnterFast()
+        globalWaiters++;
+        return ticket;
+    }
+
+    /* Must be called under gate lock. */
+    private void removeGlobalWaiter(PriorityTicket ticket) {
+        globalWaiterTickets.remove(ticket);
+        globalWaiters--;
+        if (globalWaiters == 0) {
+            globalBypassCount = 0;
+        }
+        // the first waiter could change - both entity lockers and global waiters have to recheck
+        entityTurn.signalAll();
+        globalTurn.signalAll();
+    }
+
+    /* Must be called under gate lock. */
+    private boolean canAcquireGlobalLock(PriorityTicket ticket, long ownCount) {
+        // requester holding resources goes ahead of other waiters - they wait for its resources anyway,
+        // so keeping it in the queue would deadlock (e.g. lock escalation behind a plain global lock request)
+        // consider amount of acquired resources minus resources hold by current thread
+        return globalOwner == null
+                && (ownCount > 0 || globalWaiterTickets.peek() == ticket)
+                && !hasEntityWaitersAhead()
+                && entityLockCount.sum() - ownCount == 0;
+    }
+
+    /**
+     * Must be called under gate lock.
+     * @return true if FIFO policy lets entity lockers waiting at the gate pass before global lock
+     */
+    private boolean hasEntityWaitersAhead() {
+        Long oldestEntityWaiter = entityWaiterTickets.peekFirst();
+        return globalLockFairness == GlobalLockFairness.FIFO
+                && oldestEntityWaiter != null
+                && oldestEntityWaiter < oldestGlobalWaiterTicket();
+    }
+
+    /* Must be called under gate lock. */
+    private void onGlobalLockAcquired(PriorityTicket ticket) {
+        globalWaiterTickets.remove(ticket);
+        // owner is set before waiters are decremented so fast path never sees no global activity in between
+        globalOwner = Thread.currentThread();
+        globalWaiters--;
+        globalBypassCount = 0;
+        globalLock.lock();
+    }
+
+    /**
+     * Releases global lock held by current thread.
+     */
+    void globalUnlock() {
+        if (globalOwner != Thread.currentThread()) {
+            throw new IllegalMonitorStateException("Global lock is not held by current thread");
+        }
+        globalLock.unlock();
+        if (globalLock.getHoldCount() == 0) {
+            gateLock.lock();
+            try {
+                globalOwner = null;
+                entityTurn.signalAll();
+                globalTurn.signalAll();
+            } finally {
+                gateLock.unlock();
+            }
+        }
+    }
+
+    boolean isGlobalLocked() {
+        return globalOwner != null;
+    }
+
+    /**
+     * @return true if global lock is held or requested
+     */
+    boolean hasGlobalActivity() {
+        return globalOwner != null || globalWaiters != 0;
+    }
+
+    /**
+     * Checks whether other thread acquired global lock without waiting for a resource of current thread -
+     * global lock requester doesn't wait for threads blocked on its own resources, see {@link #globalLock(LongSupplier, LockPriority)}.
+     * Must be called after current thread acquired the resource and stopped being counted as a waiter:
+     * requester evaluates its own resources and takes the lock under the gate lock, so the check either
+     * sees the owner or the requester didn't count current thread as its own resource.
+     * @return true if global lock is held by other thread
+     */
+    boolean isGlobalLockedByOtherThread() {
+        if (!hasGlobalActivity()) {
+            return false;
+        }
+        gateLock.lock();
+        try {
+            Thread owner = globalOwner;
+            return owner != null && owner != Thread.currentThread();
+        } finally {
+            gateLock.unlock();
+        }
+    }
+
+    boolean isGlobalLockedByCurrentThread() {
+        return globalOwner == Thread.currentThread();
+    }
+
+    Thread getGlobalOwner() {
+        return globalOwner;
+    }
+
+    int getGlobalWaiters() {
+        return globalWaiters;
+    }
+
+    long getEntityLockCount() {
+        return entityLockCount.sum();
+    }
+
+    EntityLock getGlobalLock() {
+        return globalLock;
+    }
+
+    void setGlobalLockFairness(GlobalLockFairness globalLockFairness) {
+        this.globalLockFairness = globalLockFairness;
+    }
+
+    void setMaxGlobalBypass(int maxGlobalBypass) {
+        this.maxGlobalBypass = maxGlobalBypass;
+    }
+
+    void setPriorityAgingNanos(long priorityAgingNanos) {
+        this.priorityAgingNanos = priorityAgingNanos;
+    }
+
+    void setGlobalRequestListener(Runnable globalRequestListener) {
+        this.globalRequestListener = globalRequestListener;
+    }
+}
@@ -0,0 +1,96 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Guard for try-with-resources locking with {@link EntityLocker}:
+ * <pre>
+ * try (LockGuard&lt;Long&gt; guard = entityLocker.acquire(id)) {
+ *     // entity is locked here
+ * }
+ * </pre>
+ *
+ * There is only one guard instance per thread and locker - each acquire pushes the locked resource
+ * on the guard stack and each {@link #close()} releases the last acquired one. So guards should only be closed
+ * in reverse order of acquiring, which is always true for (nested) try-with-resources blocks.
+ * After the stack has grown to the maximum nesting depth acquiring and closing guards allocates nothing.
+ */
+public class LockGuard<K> implements AutoCloseable {
+
+    private static final byte ENTITY = 0;
+    private static final byte ENTITIES = 1;
+    private static final byte GLOBAL = 2;
+
+    private final EntityLocker<K> entityLocker;
+
+    /* Stack of acquired resources: entity id, collection of entity ids or null for global lock. */
+    private Object[] resources = new Object[4];
+
+    /* Kinds of resources in the stack. */
+    private byte[] kinds = new byte[4];
+
+    private int size;
+
+    LockGuard(EntityLocker<K> entityLocker) {
+        this.entityLocker = entityLocker;
+    }
+
+    LockGuard<K> pushEntity(K id) {
+        push(id, ENTITY);
+        return this;
+    }
+
+    LockGuard<K> pushEntities(Collection<K> ids) {
+        push(ids, ENTITIES);
+        return this;
+    }
+
+    LockGuard<K> pushGlobal() {
+        push(null, GLOBAL);
+        return this;
+    }
+
+    /**
+     * Releases the lock(s) acquired last by current thread.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void close() {
+        if (size == 0) {
+            throw new IllegalStateException("No locks acquired with guard to release");
+        }
+        size--;
+        Object resource = resources[size];
+        resources[size] = null;
+        switch (kinds[size]) {
+            case ENTITY:
+                entityLocker.unlock((K) resource);
+                break;
+            case ENTITIES:
+                for (K id : (Collection<K>) resource) {
+                    entityLocker.unlock(id);
+                }
+                break;
+            default:
+                entityLocker.globalUnlock();
+        }
+    }
+
+    /**
+     * @return number of guards acquired by current thread and not closed yet
+     */
+    public int depth() {
+        return size;
+    }
+
+    private void push(Object resource, byte kind) {
+        if (size == resources.length) {
+            resources = Arrays.copyOf(resources, size * 2);
+            kinds = Arrays.copyOf(kinds, size * 2);
+        }
+        resources[size] = resource;
+        kinds[size] = kind;
+        size++;
+    }
+}
@@ -0,0 +1,61 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle for locking the same entity many times, created by {@link EntityLocker#handle}.
+ *
+ * Handle keeps the reference to the entity lock, so {@link #lock()}, {@link #tryLock} and {@link #unlock()}
+ * go directly to the lock without lock table lookup and key hashing.
+ * Global lock and escalation work the same as for {@link EntityLocker#lock}.
+ */
+public class LockHandle<K> {
+
+    private final EntityLocker<K> entityLocker;
+
+    private final K id;
+
+    private final EntityLock entityLock;
+
+    LockHandle(EntityLocker<K> entityLocker, K id, EntityLock entityLock) {
+        this.entityLocker = entityLocker;
+        this.id = id;
+        this.entityLock = entityLock;
+    }
+
+    /**
+     * Same as {@link EntityLocker#lock} for the entity of this handle.
+     */
+    public void lock() {
+        entityLocker.lock(id, entityLock);
+    }
+
+    /**
+     * Same as {@link EntityLocker#tryLock} for the entity of this handle.
+     * @param timeout timeout duration
+     * @param timeUnit timeout time unit
+     * @return true - if lock was acquired
+     *         false - otherwise
+     */
+    public boolean tryLock(long timeout, TimeUnit timeUnit) {
+        return entityLocker.tryLock(id, entityLock, timeout, timeUnit);
+    }
+
+    /**
+     * Same as {@link EntityLocker#unlock} for the entity of this handle.
+     */
+    public void unlock() {
+        entityLocker.unlock(entityLock);
+    }
+
+    /**
+     * @return true if entity lock is held by any thread, global lock is not considered
+     */
+    public boolean isLocked() {
+        return entityLock.isLocked();
+    }
+
+    public K getId() {
+        return id;
+    }
+}
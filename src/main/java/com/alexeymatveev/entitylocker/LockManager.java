@@ -0,0 +1,198 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hosts many {@link EntityLocker} namespaces (e.g. one per entity type) over one lock table and one set of per thread state.
+ *
+ * Each namespace is an ordinary {@link EntityLocker} with its own global lock, escalation threshold and admission limits.
+ * Entity locks of all namespaces are kept in the shared lock table keyed by {@link EntityKey}.
+ * Manager-wide global lock locks entities of all namespaces: it waits until all entity locks and namespace global locks
+ * are released. Entities of different namespaces can be locked together with {@link #lockAll}.
+ *
+ * Manager-wide global lock requested by a thread holding namespace entity locks doesn't wait for them and for threads
+ * blocked on them, same as namespace global lock. Lockers pass the manager gate before the namespace gate, so thread
+ * holding a namespace global lock should not request the manager-wide global lock while another thread waits for
+ * the namespace global lock - those waiters are not known to the manager.
+ */
+public class LockManager {
+
+    /* Entity locks of all namespaces. Key is EntityKey of namespace and entity id, value is the lock. */
+    private final Map<Object, EntityLock> lockTable = new ConcurrentHashMap<>();
+
+    /* Manager-wide global lock and the gate passed by all namespaces. Counts entity locks and namespace global locks. */
+    private final GlobalLockGate gate = new GlobalLockGate();
+
+    /* Locking state of a thread in all namespaces. */
+    private final ThreadLocal<LockerThreadState> threadState = ThreadLocal.withInitial(LockerThreadState::new);
+
+    /* Namespaces by name. */
+    private final Map<String, EntityLocker<?>> namespaces = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the namespace locker by name, creating it on first request.
+     * All callers of the same namespace must use the same entity key type.
+     * @param name namespace name
+     * @return locker of the namespace
+     */
+    @SuppressWarnings("unchecked")
+    public <K> EntityLocker<K> namespace(String name) {
+        if (name == null) {
+            throw new NullPointerException("Namespace name is null");
+        }
+        return (EntityLocker<K>) namespaces.computeIfAbsent(name,
+                key -> new EntityLocker<>(this, key, lockTable, gate, threadState));
+    }
+
+    /**
+     * @return names of created namespaces
+     */
+    public Set<String> getNamespaceNames() {
+        return namespaces.keySet();
+    }
+
+    /**
+     * Locks entities of (possibly) different namespaces in the iteration order of collection.
+     * To avoid deadlocks the entities should be always locked in the same order.
+     * If locking of any entity fails already locked ones are unlocked.
+     * @param keys entity keys created with {@link EntityLocker#key}
+     */
+    public void lockAll(Collection<? extends EntityKey<?>> keys) {
+        int locked = 0;
+        try {
+            for (EntityKey<?> key : keys) {
+                key.lock();
+                locked++;
+            }
+        } catch (RuntimeException | Error e) {
+            unlockFirst(keys, locked);
+            throw e;
+        }
+    }
+
+    /**
+     * Tries to lock entities of (possibly) different namespaces waiting not longer than timeout in total.
+     * If any entity could not be locked in time already locked ones are unlocked.
+     * @param keys entity keys created with {@link EntityLocker#key}
+     * @param timeout timeout duration
+     * @param timeUnit timeout time unit
+     * @return true - if all entities were locked
+     *         false - otherwise
+     */
+    public boolean tryLockAll(Collection<? extends EntityKey<?>> keys, long timeout, TimeUnit timeUnit) {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        int locked = 0;
+        try {
+            for (EntityKey<?> key : keys) {
+                if (!key.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    break;
+                }
+                locked++;
+            }
+        } finally {
+            if (locked < keys.size()) unlockFirst(keys, locked);
+        }
+        return locked == keys.size();
+    }
+
+    /**
+     * Unlocks entities locked with {@link #lockAll}.
+     * @param keys entity keys
+     */
+    public void unlockAll(Collection<? extends EntityKey<?>> keys) {
+        for (EntityKey<?> key : keys) {
+            key.unlock();
+        }
+    }
+
+    private void unlockFirst(Collection<? extends EntityKey<?>> keys, int count) {
+        for (EntityKey<?> key : keys) {
+            if (count-- == 0) break;
+            key.unlock();
+        }
+    }
+
+    /**
+     * Global exclusive lock for entities of all namespaces.
+     * The lock will wait until all other entity locks and namespace global locks are released.
+     * Whether new entity locks can be acquired meanwhile depends on {@link GlobalLockFairness}.
+     * The lock is reentrant.
+     */
+    public void globalLock() {
+        LockerThreadState state = threadState.get();
+        gate.globalLock(() -> ownResources(state), LockPriority.NORMAL);
+    }
+
+    /**
+     * Tries to acquire manager-wide global lock waiting not longer than timeout.
+     * @param timeout timeout duration
+     * @param timeUnit timeout time unit
+     * @return true - if lock was acquired
+     *         false - otherwise
+     */
+    public boolean tryGlobalLock(long timeout, TimeUnit timeUnit) {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        try {
+            LockerThreadState state = threadState.get();
+            return gate.tryGlobalLock(() -> ownResources(state), deadline);
+        } catch (InterruptedException e) {
+            System.out.println("Thread was interrupted while trying to acquire the global lock");
+            return false;
+        }
+    }
+
+    /**
+     * Resources manager-wide global lock requested by current thread doesn't wait for: resources counted
+     * by current thread at the manager gate and threads blocked on its entity locks.
+     * @return number of resources
+     */
+    private long ownResources(LockerThreadState state) {
+        long resources = state.managerCount;
+        for (EntityLock entityLock : state.locksHeld) {
+            resources += entityLock.getWaiters().get();
+        }
+        return resources;
+    }
+
+    /**
+     * Releases manager-wide global lock.
+     */
+    public void globalUnlock() {
+        gate.globalUnlock();
+    }
+
+    public boolean isGlobalLock() {
+        return gate.isGlobalLocked();
+    }
+
+    /**
+     * @return number of entity locks of all namespaces in the lock table
+     */
+    public int getLockTableSize() {
+        return lockTable.size();
+    }
+
+    /**
+     * @return number of entity locks and namespace global locks held (or being acquired) by all threads
+     */
+    public long getLockCount() {
+        return gate.getEntityLockCount();
+    }
+
+    public void setGlobalLockFairness(GlobalLockFairness globalLockFairness) {
+        gate.setGlobalLockFairness(globalLockFairness);
+    }
+
+    /**
+     * Sets how many new lockers may pass while manager-wide global lock is requested,
+     * used with {@link GlobalLockFairness#BOUNDED_BYPASS}.
+     * @param maxGlobalBypass max number of lockers
+     */
+    public void setMaxGlobalBypass(int maxGlobalBypass) {
+        gate.setMaxGlobalBypass(maxGlobalBypass);
+    }
+}
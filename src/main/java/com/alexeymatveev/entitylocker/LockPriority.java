@@ -0,0 +1,27 @@
+package com.alexeymatveev.entitylocker;
+
+/**
+ * Priority class of a thread waiting for an entity lock or global lock, see {@link EntityLocker#lock(Object, LockPriority)}.
+ *
+ * Waiters of a higher class are granted the lock ahead of waiters of lower classes, waiters of the same class
+ * in the order of arrival. To prevent starvation waiters age: each class below the highest one delays the waiter
+ * by one aging interval, so a waiter of lower class goes ahead of higher class waiters which arrived
+ * later than its delay has passed, see {@link EntityLocker#setPriorityAging}.
+ */
+public enum LockPriority {
+
+    /**
+     * Interactive requests.
+     */
+    HIGH,
+
+    /**
+     * Default priority of locking methods without explicit priority.
+     */
+    NORMAL,
+
+    /**
+     * Background and batch jobs.
+     */
+    LOW
+}
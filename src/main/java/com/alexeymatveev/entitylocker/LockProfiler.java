@@ -0,0 +1,176 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sampling profiler of entity lock hold times, enabled with {@link EntityLocker#setProfiler}.
+ *
+ * Stack trace of acquiring thread is captured only for a fraction of acquisitions, so profiling doesn't walk the stack
+ * on every lock. Holds longer than slow threshold are always recorded - if the acquisition was not sampled
+ * the stack trace is captured on release instead, which usually points to the same code path.
+ * Hold times are aggregated by call site - the first stack frame outside of the locker classes.
+ */
+public class LockProfiler {
+
+    /* Classes which frames are skipped when looking for the call site. */
+    private static final Set<String> LOCKER_CLASSES = new HashSet<>(Arrays.asList(
+            EntityLocker.class.getName(), LockGuard.class.getName(), LockHandle.class.getName(),
+            EntityKey.class.getName(), LockManager.class.getName(), BulkLockTask.class.getName(),
+            LockProfiler.class.getName()));
+
+    private final double sampleRate;
+
+    private final long slowThresholdNanos;
+
+    /* Statistics by call site. */
+    private final Map<String, Stats> statsByCallSite = new ConcurrentHashMap<>();
+
+    /**
+     * @param sampleRate fraction of acquisitions which stack traces are captured, from 0 to 1
+     * @param slowThreshold hold time after which the hold is always recorded
+     * @param timeUnit threshold time unit
+     */
+    public LockProfiler(double sampleRate, long slowThreshold, TimeUnit timeUnit) {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+        this.slowThresholdNanos = timeUnit.toNanos(slowThreshold);
+    }
+
+    /**
+     * Called by the owner after the entity lock was acquired for the first time.
+     */
+    void onAcquired(EntityLock entityLock) {
+        boolean sampled = sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+        entityLock.setAcquireStackTrace(sampled ? new Throwable().getStackTrace() : null);
+    }
+
+    /**
+     * Called by the owner right before the last hold of the entity lock is released.
+     */
+    void onReleasing(EntityLock entityLock) {
+        long lockedSince = entityLock.getLockedSinceNanos();
+        StackTraceElement[] stackTrace = entityLock.getAcquireStackTrace();
+        entityLock.setAcquireStackTrace(null);
+        if (lockedSince == 0) {
+            return;
+        }
+        long holdNanos = System.nanoTime() - lockedSince;
+        boolean slow = holdNanos >= slowThresholdNanos;
+        boolean sampled = stackTrace != null;
+        if (!sampled) {
+            if (!slow) {
+                return;
+            }
+            stackTrace = new Throwable().getStackTrace();
+        }
+        statsByCallSite.computeIfAbsent(callSite(stackTrace), key -> new Stats())
+                .record(holdNanos, stackTrace, slow, sampled);
+    }
+
+    /**
+     * Aggregated hold times by call site, the call sites with largest estimated total hold time first.
+     * @return profiles of call sites
+     */
+    public List<CallSiteProfile> getReport() {
+        List<CallSiteProfile> report = new ArrayList<>();
+        statsByCallSite.forEach((callSite, stats) -> report.add(stats.toProfile(callSite)));
+        report.sort(Comparator.comparingLong(CallSiteProfile::getEstimatedTotalHoldNanos).reversed());
+        return report;
+    }
+
+    /**
+     * Clears collected statistics.
+     */
+    public void reset() {
+        statsByCallSite.clear();
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public long getSlowThresholdNanos() {
+        return slowThresholdNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("LockProfiler{sampleRate=").append(sampleRate)
+                .append(", slowThresholdMicros=").append(TimeUnit.NANOSECONDS.toMicros(slowThresholdNanos))
+                .append("}");
+        for (CallSiteProfile profile : getReport()) {
+            sb.append("\n  ").append(profile);
+        }
+        return sb.toString();
+    }
+
+    private static String callSite(StackTraceElement[] stackTrace) {
+        for (StackTraceElement element : stackTrace) {
+            if (!LOCKER_CLASSES.contains(element.getClassName())) {
+                return element.toString();
+            }
+        }
+        return "unknown";
+    }
+
+    private class Stats {
+
+        private final LongAdder sampledCount = new LongAdder();
+
+        private final LongAdder slowCount = new LongAdder();
+
+        private final LongAdder totalHoldNanos = new LongAdder();
+
+        /* Hold time of sampled holds shorter than slow threshold. */
+        private final LongAdder sampledFastHoldNanos = new LongAdder();
+
+        /* Hold time of all holds longer than slow threshold. */
+        private final LongAdder slowHoldNanos = new LongAdder();
+
+        private final AtomicLong maxHoldNanos = new AtomicLong();
+
+        /* Guarded by maxHoldNanos - replaced only by the thread which raised the max. */
+        private volatile StackTraceElement[] slowestStackTrace;
+
+        void record(long holdNanos, StackTraceElement[] stackTrace, boolean slow, boolean sampled) {
+            if (sampled) sampledCount.increment();
+            if (slow) {
+                slowCount.increment();
+                slowHoldNanos.add(holdNanos);
+            } else {
+                sampledFastHoldNanos.add(holdNanos);
+            }
+            totalHoldNanos.add(holdNanos);
+            long max = maxHoldNanos.get();
+            while (holdNanos > max) {
+                if (maxHoldNanos.compareAndSet(max, holdNanos)) {
+                    slowestStackTrace = stackTrace;
+                    break;
+                }
+                max = maxHoldNanos.get();
+            }
+        }
+
+        CallSiteProfile toProfile(String callSite) {
+            long total = totalHoldNanos.sum();
+            // each sampled fast hold represents 1 / sampleRate holds, all slow holds are recorded
+            long estimated = slowHoldNanos.sum() + (sampleRate > 0 ? (long) (sampledFastHoldNanos.sum() / sampleRate) : 0);
+            StackTraceElement[] stackTrace = slowestStackTrace;
+            return new CallSiteProfile(callSite, sampledCount.sum(), slowCount.sum(), total, maxHoldNanos.get(), estimated,
+                    stackTrace == null ? new StackTraceElement[0] : stackTrace);
+        }
+    }
+}
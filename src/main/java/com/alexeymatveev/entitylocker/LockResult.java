@@ -0,0 +1,28 @@
+package com.alexeymatveev.entitylocker;
+
+/**
+ * Result of {@link EntityLocker#lockOrReject} - either the lock is acquired or the reason why the locker refused to queue.
+ */
+public enum LockResult {
+
+    ACQUIRED,
+
+    /**
+     * Too many threads are already waiting for the same entity, see {@link EntityLocker#setMaxWaitersPerEntity}.
+     */
+    REJECTED_ENTITY_WAITERS,
+
+    /**
+     * Too many threads are already waiting for any entity of the locker, see {@link EntityLocker#setMaxWaiters}.
+     */
+    REJECTED_LOCKER_WAITERS,
+
+    /**
+     * Expected wait estimated from waiters and average hold time is too long, see {@link EntityLocker#setMaxExpectedWait}.
+     */
+    REJECTED_EXPECTED_WAIT;
+
+    public boolean isAcquired() {
+        return this == ACQUIRED;
+    }
+}
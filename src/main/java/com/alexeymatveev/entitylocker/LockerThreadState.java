@@ -0,0 +1,33 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Locking state of a thread. Owned by a standalone {@link EntityLocker} or shared by all namespaces of a {@link LockManager}.
+ */
+class LockerThreadState {
+
+    /* Entity locks held by the thread in all namespaces. Compared by identity, so keys are not hashed on lock / unlock. */
+    final List<EntityLock> locksHeld = new ArrayList<>();
+
+    /* Lockers which global lock is held by the thread due to escalation. */
+    final List<EntityLocker<?>> escalatedLockers = new ArrayList<>(1);
+
+    /* Number of resources counted by the thread at the lock manager gate: entity locks and namespace global locks. */
+    long managerCount;
+
+    /**
+     * @param entityLocker locker which created the entity locks
+     * @return number of entity locks of the locker held by the thread
+     */
+    int countHeld(EntityLocker<?> entityLocker) {
+        int count = 0;
+        for (EntityLock entityLock : locksHeld) {
+            if (entityLock.getEntityLocker() == entityLocker) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
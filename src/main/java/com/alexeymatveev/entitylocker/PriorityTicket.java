@@ -0,0 +1,40 @@
+package com.alexeymatveev.entitylocker;
+
+/**
+ * Place of a waiter in priority order with aging, see {@link LockPriority}.
+ *
+ * Waiter's virtual arrival time is its real arrival time delayed by one aging interval per class below the highest,
+ * waiters are ordered by virtual arrival time. The order doesn't change while they wait,
+ * so all waiters always agree on which of them is the first.
+ */
+class PriorityTicket implements Comparable<PriorityTicket> {
+
+    private final long ticket;
+
+    /* System.nanoTime() based virtual arrival time. */
+    private final long virtualArrivalNanos;
+
+    /**
+     * @param ticket arrival order of the waiter, breaks ties
+     * @param priority priority class of the waiter
+     * @param agingNanos delay per priority class
+     */
+    PriorityTicket(long ticket, LockPriority priority, long agingNanos) {
+        this.ticket = ticket;
+        this.virtualArrivalNanos = System.nanoTime() + priority.ordinal() * agingNanos;
+    }
+
+    @Override
+    public int compareTo(PriorityTicket o) {
+        // nanoTime values may overflow - compare the difference
+        long difference = virtualArrivalNanos - o.virtualArrivalNanos;
+        if (difference != 0) {
+            return difference < 0 ? -1 : 1;
+        }
+        return Long.compare(ticket, o.ticket);
+    }
+
+    long getTicket() {
+        return ticket;
+    }
+}
@@ -0,0 +1,152 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Orders threads blocked on an entity lock by {@link LockPriority}.
+ *
+ * Only one waiter at a time is admitted to block on the entity lock itself, others wait in the queue until
+ * the admitted one has acquired the lock (or gave up) and admits the first waiter in priority order.
+ * So the lock is granted in priority order except for the waiter admitted before a higher class waiter arrived.
+ * Threads which acquire the free lock without blocking don't pass the queue.
+ *
+ * Waiters of {@link LockPriority#NORMAL} priority use the queue only while a waiter of another priority
+ * is in it, see {@link EntityLock#isPriorityOrdered} - otherwise they block on the entity lock directly
+ * without the queue lock and allocations.
+ */
+class PriorityWaitQueue {
+
+    private final ReentrantLock queueLock = new ReentrantLock();
+
+    /* Waiters which are not admitted yet. */
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+
+    /* Waiter admitted to block on the entity lock, null if none. */
+    private Waiter admitted;
+
+    private long nextTicket;
+
+    /* Number of waiters of non-default priority in the queue (admitted or not). */
+    private final AtomicInteger prioritizedWaiters = new AtomicInteger();
+
+    /**
+     * Waits until current thread is admitted to block on the entity lock.
+     * Must be followed by {@link #leave} after the entity lock is acquired.
+     * @param priority priority class of current thread
+     * @param agingNanos delay per priority class, see {@link LockPriority}
+     */
+    void enter(LockPriority priority, long agingNanos) {
+        onEntering(priority);
+        queueLock.lock();
+        try {
+            Waiter waiter = new Waiter(nextTicket++, priority, agingNanos, queueLock.newCondition());
+            if (admitted == null) {
+                admitted = waiter;
+                return;
+            }
+            waiters.add(waiter);
+            while (admitted != waiter) {
+                waiter.turn.awaitUninterruptibly();
+            }
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #enter} but waits until deadline at most.
+     * If admitted must be followed by {@link #leave} after the entity lock is acquired or not.
+     * @param priority priority class of current thread
+     * @param agingNanos delay per priority class, see {@link LockPriority}
+     * @param deadline System.nanoTime() based deadline
+     * @return true if admitted, false if deadline has come
+     */
+    boolean tryEnter(LockPriority priority, long agingNanos, long deadline) throws InterruptedException {
+        onEntering(priority);
+        queueLock.lock();
+        try {
+            Waiter waiter = new Waiter(nextTicket++, priority, agingNanos, queueLock.newCondition());
+            if (admitted == null) {
+                admitted = waiter;
+                return true;
+            }
+            waiters.add(waiter);
+            try {
+                while (admitted != waiter) {
+                    long nanosLeft = deadline - System.nanoTime();
+                    if (nanosLeft <= 0) {
+                        waiters.remove(waiter);
+                        onLeft(priority);
+                        return false;
+                    }
+                    waiter.turn.awaitNanos(nanosLeft);
+                }
+            } catch (InterruptedException e) {
+                if (admitted == waiter) {
+                    admitNext();
+                } else {
+                    waiters.remove(waiter);
+                }
+                onLeft(priority);
+                throw e;
+            }
+            return true;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Called by the admitted thread - admits the first waiter in priority order.
+     * @param priority priority class of current thread
+     */
+    void leave(LockPriority priority) {
+        queueLock.lock();
+        try {
+            admitNext();
+        } finally {
+            queueLock.unlock();
+        }
+        onLeft(priority);
+    }
+
+    /**
+     * @return true if a waiter of non-default priority is in the queue
+     */
+    boolean hasPrioritizedWaiters() {
+        return prioritizedWaiters.get() > 0;
+    }
+
+    private void onEntering(LockPriority priority) {
+        if (priority != LockPriority.NORMAL) {
+            prioritizedWaiters.incrementAndGet();
+        }
+    }
+
+    private void onLeft(LockPriority priority) {
+        if (priority != LockPriority.NORMAL) {
+            prioritizedWaiters.decrementAndGet();
+        }
+    }
+
+    /* Must be called under queue lock. */
+    private void admitNext() {
+        admitted = waiters.poll();
+        if (admitted != null) {
+            admitted.turn.signal();
+        }
+    }
+
+    private static class Waiter extends PriorityTicket {
+
+        private final Condition turn;
+
+        Waiter(long ticket, LockPriority priority, long agingNanos, Condition turn) {
+            super(ticket, priority, agingNanos);
+            this.turn = turn;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reentrant MCS queue lock used by {@link EntityLocker} with {@link EntityLockType#QUEUED}.
+ *
+ * Every acquiring thread appends its own node to the queue tail with a single atomic swap and then spins
+ * (and eventually parks) on a flag of its node only, so waiters don't touch a shared cache line.
+ * Releasing thread hands the lock off directly to its successor, waiters acquire the lock in FIFO order.
+ *
+ * Immediate tryLock succeeds only when the queue is empty. Timed tryLock doesn't enqueue -
+ * it retries the immediate tryLock until timeout, because leaving the MCS queue in the middle is not possible.
+ * Conditions and {@link LockPriority} are not supported.
+ */
+class QueuedEntityLock extends EntityLock {
+
+    private static final long serialVersionUID = 1L;
+
+    /* Number of spins on the node flag before parking. */
+    private static final int SPINS = 128;
+
+    /* Last node in the queue, null if lock is free. */
+    private final AtomicReference<Node> tail = new AtomicReference<>();
+
+    /* Node of the owner, successor is found through it on release. */
+    private volatile Node ownerNode;
+
+    private volatile Thread owner;
+
+    /* Reentrant hold count, accessed only by the owner. */
+    private int holdCount;
+
+    QueuedEntityLock(EntityLocker<?> entityLocker) {
+        super(entityLocker);
+    }
+
+    @Override
+    protected void acquire() {
+        Thread current = Thread.currentThread();
+        if (owner == current) {
+            holdCount++;
+            return;
+        }
+        Node node = new Node(current);
+        Node predecessor = tail.getAndSet(node);
+        if (predecessor != null) {
+            predecessor.next = node;
+            int spins = SPINS;
+            boolean interrupted = false;
+            while (node.waiting) {
+                if (spins > 0) {
+                    spins--;
+                } else {
+                    LockSupport.park(this);
+                    // lock() is not interruptible - remember the interrupt and keep waiting
+                    interrupted |= Thread.interrupted();
+                }
+            }
+            if (interrupted) {
+                current.interrupt();
+            }
+        }
+        onOwned(node, current);
+    }
+
+    @Override
+    protected boolean tryAcquire() {
+        Thread current = Thread.currentThread();
+        if (owner == current) {
+            holdCount++;
+            return true;
+        }
+        Node node = new Node(current);
+        if (tail.compareAndSet(null, node)) {
+            onOwned(node, current);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected boolean tryAcquire(long nanosTimeout) throws InterruptedException {
+        long deadline = System.nanoTime() + nanosTimeout;
+        while (!tryAcquire()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long nanosLeft = deadline - System.nanoTime();
+            if (nanosLeft <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, Math.min(nanosLeft, TimeUnit.MICROSECONDS.toNanos(50)));
+        }
+        return true;
+    }
+
+    @Override
+    protected void release() {
+        if (owner != Thread.currentThread()) {
+            throw new IllegalMonitorStateException("Lock is not held by current thread");
+        }
+        if (--holdCount > 0) {
+            return;
+        }
+        Node node = ownerNode;
+        ownerNode = null;
+        owner = null;
+        Node successor = node.next;
+        if (successor == null) {
+            if (tail.compareAndSet(node, null)) {
+                return;
+            }
+            // successor has swapped the tail but not linked itself yet
+            while ((successor = node.next) == null) {
+                Thread.yield();
+            }
+        }
+        successor.waiting = false;
+        LockSupport.unpark(successor.thread);
+    }
+
+    private void onOwned(Node node, Thread current) {
+        ownerNode = node;
+        owner = current;
+        holdCount = 1;
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        lock();
+    }
+
+    /**
+     * Waiters are granted the lock in FIFO order by the queue itself, priorities are not supported.
+     */
+    @Override
+    boolean isPriorityOrdered(LockPriority priority) {
+        return false;
+    }
+
+    @Override
+    public Condition newCondition() {
+        throw new UnsupportedOperationException("Conditions are not supported by queued entity locks");
+    }
+
+    @Override
+    public boolean isLocked() {
+        return tail.get() != null;
+    }
+
+    @Override
+    public boolean isHeldByCurrentThread() {
+        return owner == Thread.currentThread();
+    }
+
+    @Override
+    public int getHoldCount() {
+        return owner == Thread.currentThread() ? holdCount : 0;
+    }
+
+    @Override
+    public Thread getOwner() {
+        return owner;
+    }
+
+    @Override
+    public String toString() {
+        Thread o = owner;
+        return getClass().getName() + "@" + Integer.toHexString(hashCode())
+                + (o == null ? "[Unlocked]" : "[Locked by thread " + o.getName() + "]");
+    }
+
+    private static class Node {
+
+        private final Thread thread;
+
+        private volatile Node next;
+
+        private volatile boolean waiting = true;
+
+        Node(Thread thread) {
+            this.thread = thread;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter split into as many shards as there are processors, so threads running on different cores
+ * mostly don't update the same cache line. Every shard occupies its own cache line.
+ *
+ * Shards take {@code (SHARDS + 1) * 128} bytes, so they are allocated only when the counter is contended -
+ * the first failed update of the base value. Uncontended counters (most namespaces and semaphores) stay
+ * a single atomic value.
+ *
+ * Java doesn't expose the core a thread runs on, so the shard is chosen by thread id.
+ * Unlike {@link java.util.concurrent.atomic.LongAdder} a thread always updates the same shard once shards exist,
+ * so an increment and a following decrement of the same thread can never be summed one without the other.
+ * Sum is exact only if no increments run concurrently with it - {@link GlobalLockGate} sums under its gate lock
+ * while new resources are counted only under the same lock.
+ */
+class ShardedCounter {
+
+    /* Number of shards, power of two not less than number of available processors. */
+    static final int SHARDS = shards(Runtime.getRuntime().availableProcessors());
+
+    /* Distance between shards in longs - 128 bytes, two cache lines against adjacent line prefetch. */
+    private static final int STRIDE = 16;
+
+    /* Updated until the first contention. */
+    private final AtomicLong base = new AtomicLong();
+
+    /* Shards, null until the counter is contended. */
+    private volatile AtomicLongArray cells;
+
+    /**
+     * Adds the value to the shard of current thread.
+     * @param value value to add, may be negative
+     */
+    void add(long value) {
+        AtomicLongArray cells = this.cells;
+        if (cells == null) {
+            long current = base.get();
+            if (base.compareAndSet(current, current + value)) {
+                return;
+            }
+            cells = inflate();
+        }
+        cells.getAndAdd(shardIndex(), value);
+    }
+
+    /**
+     * @return sum of all shards
+     */
+    long sum() {
+        long sum = 0;
+        AtomicLongArray cells = this.cells;
+        if (cells != null) {
+            for (int i = 0; i < SHARDS; i++) {
+                sum += cells.get((i + 1) * STRIDE);
+            }
+        }
+        // threads move from base to shards but never back - base is read last, so a decrement summed
+        // from a shard is never summed without the increment made earlier in base
+        return sum + base.get();
+    }
+
+    /**
+     * @return true if shards are allocated
+     */
+    boolean isInflated() {
+        return cells != null;
+    }
+
+    private AtomicLongArray inflate() {
+        AtomicLongArray cells = this.cells;
+        if (cells == null) {
+            synchronized (this) {
+                cells = this.cells;
+                if (cells == null) {
+                    cells = new AtomicLongArray((SHARDS + 1) * STRIDE);
+                    this.cells = cells;
+                }
+            }
+        }
+        return cells;
+    }
+
+    private static int shardIndex() {
+        // spread thread ids so threads created one after another get different shards
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        // first stride is left empty to separate the shards from the array header
+        return (((int) (id >>> 32) & (SHARDS - 1)) + 1) * STRIDE;
+    }
+
+    private static int shards(int processors) {
+        int shards = 1;
+        while (shards < processors) {
+            shards <<= 1;
+        }
+        return shards;
+    }
+}
@@ -0,0 +1,60 @@
+package com.alexeymatveev.entitylocker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wait times of lock acquisitions of one priority class, see {@link EntityLocker#getWaitStatistics} and {@link EntityLocker#getGlobalWaitStatistics}.
+ */
+public class WaitStatistics {
+
+    private final LockPriority priority;
+
+    private final long waitCount;
+
+    private final long totalWaitNanos;
+
+    private final long maxWaitNanos;
+
+    WaitStatistics(LockPriority priority, long waitCount, long totalWaitNanos, long maxWaitNanos) {
+        this.priority = priority;
+        this.waitCount = waitCount;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    public LockPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return number of recorded acquisitions
+     */
+    public long getWaitCount() {
+        return waitCount;
+    }
+
+    public long getTotalWaitNanos() {
+        return totalWaitNanos;
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    /**
+     * @return average wait time of recorded acquisitions, 0 if there were none
+     */
+    public long getAverageWaitNanos() {
+        return waitCount == 0 ? 0 : totalWaitNanos / waitCount;
+    }
+
+    @Override
+    public String toString() {
+        return "WaitStatistics{" +
+                "priority=" + priority +
+                ", waitCount=" + waitCount +
+                ", averageWaitMicros=" + TimeUnit.NANOSECONDS.toMicros(getAverageWaitNanos()) +
+                ", maxWaitMicros=" + TimeUnit.NANOSECONDS.toMicros(maxWaitNanos) +
+                '}';
+    }
+}
@@ -1,13 +1,24 @@
 package com.alexeymatveev.entitylocker;
 
 import com.alexeymatveev.entitylocker.service.BaseEntityService;
+import com.alexeymatveev.entitylocker.service.BatchEntityService;
 import com.alexeymatveev.entitylocker.service.ComplexKeyEntityService;
 import com.alexeymatveev.entitylocker.service.LongKeyEntityService;
+import com.alexeymatveev.entitylocker.service.Transaction;
+import com.alexeymatveev.entitylocker.service.impl.CachingEntityServiceImpl;
+import com.alexeymatveev.entitylocker.service.impl.LockingEntityServiceImpl;
+import com.alexeymatveev.entitylocker.service.impl.MvccEntityServiceImpl;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
@@ -47,6 +58,7 @@ public abstract class BaseEntityTest<K, T> {
      * If not protect update/get code with entity locker the immediately returned value may be different.
      * Comment lock / unlock methods out it out to see assertion errors.
      */
+    @SuppressWarnings("try")
     protected void testCreateManyAndCrossConcurrentUpdates() throws InterruptedException {
         final BaseEntityService<K, T> entityService = getEntityService();
         // create entity locker to lock protected code
@@ -69,11 +81,12 @@ public abstract class BaseEntityTest<K, T> {
                     changeEntity(entity);
 
                     K entityId = getEntityId(entity);
-                    // comment out lock & unlock methods to see assertion fails
-                    entityLocker.lock(entityId);
-                    entityService.update(entity);
-                    T updatedEntity = entityService.get(entityId);
-                    entityLocker.unlock(entityId);
+                    T updatedEntity;
+                    // replace guard with plain block to see assertion fails
+                    try (LockGuard<K> guard = entityLocker.acquire(entityId)) {
+                        entityService.update(entity);
+                        updatedEntity = entityService.get(entityId);
+                    }
 
                     assertTrue(checkEquals(entity, updatedEntity), "Entity was changed after update by other thread");
                 } finally {
@@ -382,56 +395,1860 @@ public abstract class BaseEntityTest<K, T> {
 
     }
 
-    protected void runTest(String methodName) {
+    /**
+     * Test checks that caching service loads the entity from backing service only once
+     * when many threads are getting the same entity simultaneously,
+     * that update invalidates the cached entity and that cache size is bounded, also when it's not a power of two.
+     */
+    protected void testCachingServiceSingleFlight() throws InterruptedException {
+        final EntityLocker<K> entityLocker = new EntityLocker<>();
+        final CachingEntityServiceImpl<K, T> entityService = new CachingEntityServiceImpl<>(
+                getEntityService(), entityLocker, numberOfEntities, this::getEntityId, this::cloneEntity);
+
+        System.out.println("Getting 1 entity from " + numberOfThreads + " threads through caching service");
+        final T randomEntity = createRandomEntity();
+        K id = entityService.create(randomEntity);
+        setEntityId(randomEntity, id);
+
+        CountDownLatch startLatch = new CountDownLatch(1);
+        CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
+        for (int i=0; i<numberOfThreads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    startLatch.await();
+                    T entity = entityService.get(id);
+                    assertTrue(checkEquals(randomEntity, entity), "Cached entity is not matching created one");
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+            t.start();
+        }
+        startLatch.countDown();
+        countDownLatch.await();
+        assertTrue(entityService.getLoadCount() == 1, "Entity was loaded " + entityService.getLoadCount() + " times instead of 1");
+
+        // update must invalidate the cache so next get returns new state
+        changeEntity(randomEntity);
+        entityService.update(randomEntity);
+        assertTrue(checkEquals(randomEntity, entityService.get(id)), "Cached entity was not invalidated on update");
+        System.out.println("Hit ratio: " + entityService.getHitRatio() + ", loads: " + entityService.getLoadCount());
+
+        // cache stays bounded when more entities are read than it can hold
+        for (int i=0; i<2*numberOfEntities; i++) {
+            entityService.get(entityService.create(createRandomEntity()));
+        }
+        assertTrue(entityService.size() <= numberOfEntities, "Cache holds " + entityService.size() + " entities, maximum is " + numberOfEntities);
+        assertTrue(entityService.getEvictionCount() > 0, "No entities were evicted from full cache");
+
+        int maximumSize = 17;
+        System.out.println("Reading entities through caching service with maximum size " + maximumSize);
+        final CachingEntityServiceImpl<K, T> boundedService = new CachingEntityServiceImpl<>(
+                getEntityService(), entityLocker, maximumSize, this::getEntityId, this::cloneEntity);
+        for (int i=0; i<10*maximumSize; i++) {
+            boundedService.get(boundedService.create(createRandomEntity()));
+            assertTrue(boundedService.size() <= maximumSize, "Cache holds " + boundedService.size() + " entities, maximum is " + maximumSize);
+        }
+    }
+
+    /**
+     * Test checks that probing entities with {@link EntityLocker#isLocked} doesn't create entity locks
+     * and that {@link EntityLocker#snapshot()} reports locked entity with its owner.
+     */
+    protected void testIntrospection() throws InterruptedException {
+        final BaseEntityService<K, T> entityService = getEntityService();
+        final EntityLocker<K> entityLocker = new EntityLocker<>();
+
+        System.out.println("Probing " + numberOfThreads + " entity ids with isLocked, checking lock table stays empty");
+        for (int i=0; i<numberOfThreads; i++) {
+            K id = entityService.create(createRandomEntity());
+            assertTrue(!entityLocker.isLocked(id), "Entity is locked but nobody locked it");
+        }
+        assertTrue(entityLocker.snapshot().getTableSize() == 0, "isLocked created entity locks");
+
+        K id = entityService.listIds().get(0);
+        entityLocker.lock(id);
         try {
-            Method testMethod = getMethod(this.getClass(), methodName);
-            if (testMethod != null) {
-                testMethod.invoke(this);
-                System.out.println("\nTest " + methodName + " completed\n--\n");
-            } else {
-                System.out.println("Test method: " + methodName + " not found");
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+            EntityLockerSnapshot<K> snapshot = entityLocker.snapshot();
+            System.out.println(snapshot);
+            assertTrue(snapshot.getLockedEntities().size() == 1, "Snapshot doesn't contain locked entity");
+            assertTrue(Thread.currentThread().getName().equals(snapshot.getLockedEntities().get(0).getOwnerThreadName()),
+                    "Snapshot reports wrong lock owner");
+        } finally {
+            entityLocker.unlock(id);
         }
+        assertTrue(entityLocker.snapshot().getLockedEntities().isEmpty(), "Snapshot contains released entity lock");
     }
 
-    private Method getMethod(Class<?> clazz, String name) {
-        if (clazz.equals(Object.class)) {
-            return null;
+    /**
+     * Test checks that when entity is locked and max number of waiters is reached
+     * other threads are rejected immediately instead of waiting for the lock.
+     */
+    protected void testAdmissionControl() throws InterruptedException {
+        final BaseEntityService<K, T> entityService = getEntityService();
+        final EntityLocker<K> entityLocker = new EntityLocker<>();
+        int maxWaiters = 2;
+        entityLocker.setMaxWaitersPerEntity(maxWaiters);
+
+        System.out.println("Locking 1 entity, " + numberOfThreads + " threads try to lock it with max " + maxWaiters + " waiters");
+        K id = entityService.create(createRandomEntity());
+        AtomicInteger acquired = new AtomicInteger();
+        CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
+        entityLocker.lock(id);
+        for (int i=0; i<numberOfThreads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    if (entityLocker.lockOrReject(id).isAcquired()) {
+                        acquired.incrementAndGet();
+                        entityLocker.unlock(id);
+                    }
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+            t.start();
         }
+        // wait for all threads except waiters to be rejected
+        long rejectedExpected = numberOfThreads - maxWaiters;
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (entityLocker.getRejectedCount(LockResult.REJECTED_ENTITY_WAITERS) < rejectedExpected
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        entityLocker.unlock(id);
+        countDownLatch.await();
+        assertTrue(acquired.get() == maxWaiters, "Lock was acquired " + acquired.get() + " times instead of " + maxWaiters);
+        System.out.println("Rejected: " + entityLocker.getRejectedCount(LockResult.REJECTED_ENTITY_WAITERS));
+    }
+
+    /**
+     * Test checks that thread waiting for entity change with {@link EntityLocker#await}
+     * is woken up when other thread changes the entity and signals it.
+     */
+    protected void testEntityCondition() throws InterruptedException {
+        final BaseEntityService<K, T> entityService = getEntityService();
+        final EntityLocker<K> entityLocker = new EntityLocker<>();
+
+        System.out.println("Waiting for entity change in 1 thread while other thread changes it");
+        final T randomEntity = createRandomEntity();
+        K id = entityService.create(randomEntity);
+        setEntityId(randomEntity, id);
+        final T changedEntity = cloneEntity(randomEntity);
+        changeEntity(changedEntity);
+
+        AtomicInteger changesSeen = new AtomicInteger();
+        CountDownLatch waiting = new CountDownLatch(1);
+        CountDownLatch countDownLatch = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            entityLocker.lock(id);
+            try {
+                waiting.countDown();
+                if (entityLocker.await(id, () -> checkEquals(changedEntity, entityService.get(id)), 5, TimeUnit.SECONDS)) {
+                    changesSeen.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } finally {
+                entityLocker.unlock(id);
+                countDownLatch.countDown();
+            }
+        });
+        t.start();
+        waiting.await();
+        entityLocker.lock(id);
         try {
-            return clazz.getDeclaredMethod(name);
-        } catch (NoSuchMethodException e) {
-            return getMethod(clazz.getSuperclass(), name);
+            entityService.update(changedEntity);
+            entityLocker.signalAll(id);
+        } finally {
+            entityLocker.unlock(id);
         }
+        countDownLatch.await();
+        assertTrue(changesSeen.get() == 1, "Waiting thread didn't see entity change");
+        assertTrue(!entityLocker.isLocked(id), "Entity is still locked after waiting thread finished");
     }
 
-    abstract T createRandomEntity();
+    /**
+     * Test checks that {@link EntitySemaphore} lets not more than N threads work with the same entity simultaneously
+     * and removes entity semaphore when all permits are returned, and that tryAcquire escalates to global lock.
+     * Then escalates while another thread is blocked on an entity of the escalating thread, with fair and non fair semaphores.
+     */
+    protected void testEntitySemaphore() throws InterruptedException {
+        final BaseEntityService<K, T> entityService = getEntityService();
+        int permits = 3;
+        final EntitySemaphore<K> entitySemaphore = new EntitySemaphore<>(permits);
 
-    abstract BaseEntityService<K, T> getEntityService();
+        System.out.println("Updating 1 entity from " + numberOfThreads + " threads, max " + permits + " at the same time");
+        K id = entityService.create(createRandomEntity());
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maxConcurrent = new AtomicInteger();
+        CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
+        for (int i=0; i<numberOfThreads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    entitySemaphore.acquire(id, 1);
+                    try {
+                        maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+                        T entity = entityService.get(id);
+                        changeEntity(entity);
+                        entityService.update(entity);
+                        concurrent.decrementAndGet();
+                    } finally {
+                        entitySemaphore.release(id, 1);
+                    }
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+            t.start();
+        }
+        countDownLatch.await();
+        assertTrue(maxConcurrent.get() <= permits, maxConcurrent.get() + " threads worked with entity at the same time");
+        assertTrue(entitySemaphore.getEntityCount() == 0, "Entity semaphore was not removed after all permits were returned");
 
-    abstract void setEntityId(T entity, K id);
+        System.out.println("Acquiring permits of more entities than escalation threshold with timeout");
+        entitySemaphore.setGlobalEscalationThreshold(globalEscalationThreshold);
+        List<K> ids = new ArrayList<>();
+        for (int i=0; i<=globalEscalationThreshold; i++) {
+            ids.add(entityService.create(createRandomEntity()));
+        }
+        for (K entityId : ids) {
+            assertTrue(entitySemaphore.tryAcquire(entityId, 1, 100, TimeUnit.MILLISECONDS), "Permits were not acquired");
+        }
+        assertTrue(entitySemaphore.isGlobalLock(), "tryAcquire didn't escalate to global lock");
+        boolean[] acquired = new boolean[1];
+        Thread t = new Thread(() -> acquired[0] = entitySemaphore.tryAcquire(id, 1, 50, TimeUnit.MILLISECONDS));
+        t.start();
+        t.join();
+        assertTrue(!acquired[0], "Permits were acquired by other thread during escalation");
+        // permits of the last entity were not acquired - it's released while escalated
+        Collections.reverse(ids);
+        for (K entityId : ids) {
+            entitySemaphore.release(entityId, 1);
+        }
+        assertTrue(!entitySemaphore.isGlobalLock(), "Escalated global lock is not released");
+        assertTrue(entitySemaphore.getEntityCount() == 0, "Entity semaphores were not removed after escalation");
 
-    abstract K getEntityId(T entity);
+        for (boolean fair : new boolean[] {false, true}) {
+            System.out.println("Escalating to global lock while another thread is blocked on own entity, fair: " + fair);
+            final EntitySemaphore<K> semaphore = new EntitySemaphore<>(permits, fair);
+            semaphore.setGlobalEscalationThreshold(globalEscalationThreshold);
+            List<K> escalationIds = new ArrayList<>();
+            for (int i=0; i<=globalEscalationThreshold; i++) {
+                escalationIds.add(entityService.create(createRandomEntity()));
+            }
+            K blockedId = escalationIds.get(0);
+            CountDownLatch acquiredFirst = new CountDownLatch(1);
+            CountDownLatch escalate = new CountDownLatch(1);
+            CountDownLatch escalated = new CountDownLatch(1);
+            CountDownLatch blockedAcquired = new CountDownLatch(1);
+            Thread holder = new Thread(() -> {
+                try {
+                    semaphore.acquire(blockedId, 1);
+                    acquiredFirst.countDown();
+                    escalate.await();
+                    // blocked thread waits for all permits - fair semaphore would queue this request behind it
+                    semaphore.acquire(blockedId, 1);
+                    for (int i=1; i<escalationIds.size(); i++) {
+                        semaphore.acquire(escalationIds.get(i), 1);
+                    }
+                    escalated.countDown();
+                    // blocked thread may not get the returned permits while escalated
+                    semaphore.release(blockedId, 2);
+                    Thread.sleep(50);
+                    assertTrue(blockedAcquired.getCount() == 1, "Permits were acquired by other thread during escalation");
+                    for (int i=escalationIds.size() - 1; i>0; i--) {
+                        semaphore.release(escalationIds.get(i), 1);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            holder.start();
+            acquiredFirst.await();
+            Thread blocked = new Thread(() -> {
+                semaphore.acquire(blockedId, permits);
+                blockedAcquired.countDown();
+                semaphore.release(blockedId, permits);
+            });
+            blocked.start();
+            while (semaphore.getAwaitedPermits(blockedId) < permits) {
+                Thread.sleep(1);
+            }
+            escalate.countDown();
+            assertTrue(escalated.await(2, TimeUnit.SECONDS), "Escalation deadlocked waiting for thread blocked on own entity");
+            assertTrue(blockedAcquired.await(2, TimeUnit.SECONDS), "Blocked thread didn't get permits after escalated global lock was released");
+            holder.join();
+            blocked.join();
+            assertTrue(!semaphore.isGlobalLock(), "Escalated global lock is not released");
+            assertTrue(semaphore.getEntityCount() == 0, "Entity semaphores were not removed after escalation");
+        }
+    }
 
-    abstract T cloneEntity(T entity);
+    /**
+     * Test processes all entities with {@link EntityLocker#parallelForEach} while other threads keep updating
+     * random entities, and checks that every entity was processed without escalating to global lock.
+     */
+    @SuppressWarnings("try")
+    protected void testParallelForEach() throws InterruptedException {
+        final BaseEntityService<K, T> entityService = getEntityService();
+        final EntityLocker<K> entityLocker = new EntityLocker<>();
+        entityLocker.setGlobalEscalationThreshold(globalEscalationThreshold);
 
-    abstract void changeEntity(T entity);
+        System.out.println("Processing " + numberOfThreads + " entities in parallel while other threads update them");
+        for (int i=0; i<numberOfThreads; i++) {
+            entityService.create(createRandomEntity());
+        }
+        List<K> ids = entityService.listIds();
+        int onlineThreads = 10;
+        CountDownLatch countDownLatch = new CountDownLatch(onlineThreads);
+        for (int i=0; i<onlineThreads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    for (int j=0; j<100; j++) {
+                        K id = ids.get(randomNumber(0, ids.size() - 1));
+                        try (LockGuard<K> guard = entityLocker.acquire(id)) {
+                            T entity = entityService.get(id);
+                            changeEntity(entity);
+                            entityService.update(entity);
+                        }
+                    }
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+            t.start();
+        }
+        AtomicInteger globalLocked = new AtomicInteger();
+        BulkResult result = entityLocker.parallelForEach(ids, id -> {
+            if (entityLocker.isGlobalLock()) {
+                globalLocked.incrementAndGet();
+            }
+            T entity = entityService.get(id);
+            changeEntity(entity);
+            entityService.update(entity);
+            T updatedEntity = entityService.get(id);
+            assertTrue(checkEquals(entity, updatedEntity), "Entity was changed by other thread during bulk processing");
+        });
+        countDownLatch.await();
+        System.out.println(result);
+        assertTrue(result.getProcessedCount() == ids.size(), "Processed " + result.getProcessedCount() + " entities instead of " + ids.size());
+        assertTrue(globalLocked.get() == 0, "Bulk processing escalated to global lock");
+    }
 
-    abstract boolean checkEquals(T e1, T e2);
+    /**
+     * Test locks entity together with a counter of another {@link LockManager} namespace while manager-wide
+     * global lock is taken from time to time, and checks that no update was lost and that namespace global lock
+     * doesn't block other namespaces.
+     * Then takes manager global lock holding namespace entity locks while another thread is blocked on one of them.
+     */
+    protected void testLockManager() throws InterruptedException {
+        final BaseEntityService<K, T> entityService = getEntityService();
+        final LockManager lockManager = new LockManager();
+        final EntityLocker<K> entityLocker = lockManager.namespace("entities");
+        final EntityLocker<String> counterLocker = lockManager.namespace("counters");
+        entityLocker.setGlobalEscalationThreshold(globalEscalationThreshold);
 
-    String randomString() {
-        return UUID.randomUUID().toString();
+        System.out.println("Updating entities with a counter of another namespace from " + numberOfThreads + " threads");
+        List<K> ids = new ArrayList<>();
+        for (int i=0; i<numberOfEntities; i++) {
+            ids.add(entityService.create(createRandomEntity()));
+        }
+        int[] updateCounter = new int[1];
+        AtomicInteger globalLockViolations = new AtomicInteger();
+        CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
+        for (int i=0; i<numberOfThreads; i++) {
+            final int threadNumber = i;
+            Thread t = new Thread(() -> {
+                try {
+                    if (threadNumber % 100 == 0) {
+                        lockManager.globalLock();
+                        try {
+                            if (lockManager.getLockCount() != 0) {
+                                globalLockViolations.incrementAndGet();
+                            }
+                        } finally {
+                            lockManager.globalUnlock();
+                        }
+                        return;
+                    }
+                    K id = ids.get(randomNumber(0, ids.size() - 1));
+                    List<EntityKey<?>> keys = Arrays.asList(entityLocker.key(id), counterLocker.key("updates"));
+                    lockManager.lockAll(keys);
+                    try {
+                        T entity = entityService.get(id);
+                        changeEntity(entity);
+                        entityService.update(entity);
+                        updateCounter[0]++;
+                    } finally {
+                        lockManager.unlockAll(keys);
+                    }
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+            t.start();
+        }
+        countDownLatch.await();
+        int expectedUpdates = numberOfThreads - (numberOfThreads + 99) / 100;
+        assertTrue(updateCounter[0] == expectedUpdates, "Counted " + updateCounter[0] + " updates instead of " + expectedUpdates);
+        assertTrue(globalLockViolations.get() == 0, "Manager global lock was acquired while entity locks were held");
+        assertTrue(lockManager.getLockTableSize() == ids.size() + 1, "Lock table has " + lockManager.getLockTableSize() + " locks");
+
+        entityLocker.globalLock();
+        try {
+            AtomicInteger locked = new AtomicInteger();
+            AtomicInteger globalLocked = new AtomicInteger();
+            Thread t = new Thread(() -> {
+                if (counterLocker.tryLock("updates", lockTimeoutMilliseconds, TimeUnit.MILLISECONDS)) {
+                    locked.incrementAndGet();
+                    counterLocker.unlock("updates");
+                }
+                if (lockManager.tryGlobalLock(0, TimeUnit.MILLISECONDS)) {
+                    globalLocked.incrementAndGet();
+                    lockManager.globalUnlock();
+                }
+            });
+            t.start();
+            t.join();
+            assertTrue(locked.get() == 1, "Namespace global lock blocked another namespace");
+            assertTrue(globalLocked.get() == 0, "Manager global lock was acquired while namespace global lock was held");
+        } finally {
+            entityLocker.globalUnlock();
+        }
+
+        System.out.println("Taking manager global lock while another thread is blocked on own namespace entity lock");
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch globalLock = new CountDownLatch(1);
+        CountDownLatch globalLocked = new CountDownLatch(1);
+        CountDownLatch blockedLocked = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            try {
+                entityLocker.lock(ids.get(0));
+                counterLocker.lock("updates");
+                locked.countDown();
+                globalLock.await();
+                lockManager.globalLock();
+                globalLocked.countDown();
+                // blocked thread may not get the released entity lock while manager global lock is held
+                counterLocker.unlock("updates");
+                Thread.sleep(50);
+                assertTrue(blockedLocked.getCount() == 1, "Namespace entity lock was acquired while manager global lock was held");
+                lockManager.globalUnlock();
+                entityLocker.unlock(ids.get(0));
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        holder.start();
+        locked.await();
+        Thread blocked = new Thread(() -> {
+            counterLocker.lock("updates");
+            blockedLocked.countDown();
+            counterLocker.unlock("updates");
+        });
+        blocked.start();
+        while (counterLocker.getEntityWaiters() < 1) {
+            Thread.sleep(1);
+        }
+        globalLock.countDown();
+        assertTrue(globalLocked.await(2, TimeUnit.SECONDS), "Manager global lock deadlocked waiting for thread blocked on own entity lock");
+        assertTrue(blockedLocked.await(2, TimeUnit.SECONDS), "Blocked thread didn't get entity lock after manager global lock was released");
+        holder.join();
+        blocked.join();
+        assertTrue(lockManager.getLockCount() == 0, "Manager counts " + lockManager.getLockCount() + " locks after all were released");
     }
 
-    int randomNumber(int start, int end) {
-        return ThreadLocalRandom.current().nextInt(start, end + 1);
+    /**
+     * Test updates entities from many threads locking them through {@link EntityLockPipeline} with a small ring buffer,
+     * and checks that updates were not interleaved.
+     * Then holds the combiner while threads publish lock requests and checks that the burst is processed in one batch.
+     * Then takes global lock holding an entity lock while another thread is blocked on it.
+     */
+    protected void testLockPipeline() throws InterruptedException {
+        final BaseEntityService<K, T> entityService = getEntityService();
+        final EntityLockPipeline<K> lockPipeline = new EntityLockPipeline<>(16);
+
+        List<K> ids = new ArrayList<>();
+        System.out.println("Updating " + numberOfEntities + " entities " + numberOfThreads + " times through lock pipeline");
+        for (int i=0; i<numberOfEntities; i++) {
+            ids.add(entityService.create(createRandomEntity()));
+        }
+        int[] updateCounter = new int[1];
+        CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
+        for (int i=0; i<numberOfThreads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    K id = ids.get(randomNumber(0, ids.size() - 1));
+                    lockPipeline.lock(id);
+                    try {
+                        // reentrant lock of the same entity
+                        lockPipeline.lock(id);
+                        lockPipeline.unlock(id);
+                        T entity = entityService.get(id);
+                        changeEntity(entity);
+                        entityService.update(entity);
+                        T updatedEntity = entityService.get(id);
+                        assertTrue(checkEquals(entity, updatedEntity), "Entity was changed after update by other thread");
+                    } finally {
+                        lockPipeline.unlock(id);
+                    }
+                    lockPipeline.lock(ids.get(0));
+                    try {
+                        updateCounter[0]++;
+                    } finally {
+                        lockPipeline.unlock(ids.get(0));
+                    }
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+            t.start();
+        }
+        countDownLatch.await();
+        System.out.println(lockPipeline.getRequestCount() + " requests processed in " + lockPipeline.getBatchCount() + " batches");
+        assertTrue(updateCounter[0] == numberOfThreads, "Counted " + updateCounter[0] + " updates instead of " + numberOfThreads);
+        assertTrue(lockPipeline.getRequestCount() == numberOfThreads * 6L, "Processed " + lockPipeline.getRequestCount() + " requests");
+        lockPipeline.globalLock();
+        lockPipeline.globalUnlock();
+
+        int burst = 8;
+        System.out.println("Publishing " + burst + " lock requests while combiner is held");
+        List<K> burstIds = new ArrayList<>();
+        for (int i=0; i<burst; i++) {
+            burstIds.add(entityService.create(createRandomEntity()));
+        }
+        CountDownLatch lockedLatch = new CountDownLatch(burst);
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        lockPipeline.getCombinerLock().lock();
+        long batchCount = lockPipeline.getBatchCount();
+        long requestCount = lockPipeline.getRequestCount();
+        for (K id : burstIds) {
+            Thread t = new Thread(() -> {
+                lockPipeline.lock(id);
+                lockedLatch.countDown();
+                try {
+                    releaseLatch.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    lockPipeline.unlock(id);
+                }
+            });
+            t.start();
+        }
+        while (lockPipeline.getPublishedRequestCount() < burst) {
+            Thread.sleep(1);
+        }
+        lockPipeline.getCombinerLock().unlock();
+        lockedLatch.await();
+        long burstBatches = lockPipeline.getBatchCount() - batchCount;
+        long burstRequests = lockPipeline.getRequestCount() - requestCount;
+        System.out.println(burstRequests + " burst requests processed in " + burstBatches + " batches");
+        assertTrue(burstRequests == burst && burstBatches == 1,
+                "Burst of " + burst + " requests was processed in " + burstBatches + " batches");
+        releaseLatch.countDown();
+        while (lockPipeline.getRequestCount() < requestCount + 2L * burst) {
+            Thread.sleep(1);
+        }
+
+        System.out.println("Taking global lock while another thread is blocked on own entity lock");
+        K heldId = ids.get(0);
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch globalLock = new CountDownLatch(1);
+        CountDownLatch globalLocked = new CountDownLatch(1);
+        CountDownLatch blockedLocked = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            try {
+                lockPipeline.lock(heldId);
+                locked.countDown();
+                globalLock.await();
+                lockPipeline.globalLock();
+                globalLocked.countDown();
+                // blocked thread may not get the released entity lock while global lock is held
+                lockPipeline.unlock(heldId);
+                Thread.sleep(50);
+                assertTrue(blockedLocked.getCount() == 1, "Entity lock was acquired while global lock was held");
+                lockPipeline.globalUnlock();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        holder.start();
+        locked.await();
+        requestCount = lockPipeline.getRequestCount();
+        Thread blocked = new Thread(() -> {
+            lockPipeline.lock(heldId);
+            blockedLocked.countDown();
+            lockPipeline.unlock(heldId);
+        });
+        blocked.start();
+        // lock request of the blocked thread is queued on the held entity
+        while (lockPipeline.getRequestCount() == requestCount) {
+            Thread.sleep(1);
+        }
+        globalLock.countDown();
+        assertTrue(globalLocked.await(2, TimeUnit.SECONDS), "Global lock deadlocked waiting for thread blocked on own entity lock");
+        assertTrue(blockedLocked.await(2, TimeUnit.SECONDS), "Blocked thread didn't get entity lock after global lock was released");
+        holder.join();
+        blocked.join();
     }
 
-    void assertTrue(boolean condition, String message) {
-        if (!condition) {
-            System.out.println("Assertion error!: " + message);
+    /**
+     * Test modifies one entity from many threads with read-modify-write of {@link LockingEntityServiceImpl}
+     * while other threads read it, and checks that no update was lost: every update has to be made
+     * from a different state of entity and modifier is called once per update.
+     * Then checks that constant reads of the entity don't starve its update.
+     */
+    protected void testLockingService() throws InterruptedException {
+        final LockingEntityServiceImpl<K, T> entityService = new LockingEntityServiceImpl<>(
+                getEntityService(), 4, this::getEntityId);
+
+        System.out.println("Modifying 1 entity from " + numberOfThreads + " threads through locking service");
+        K id = entityService.create(createRandomEntity());
+        Set<T> updatedFrom = ConcurrentHashMap.newKeySet();
+        AtomicInteger modifications = new AtomicInteger();
+        CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
+        for (int i=0; i<numberOfThreads; i++) {
+            final boolean writer = i % 2 == 0;
+            Thread t = new Thread(() -> {
+                try {
+                    if (writer) {
+                        List<T> modifiedFrom = new ArrayList<>(1);
+                        entityService.updateAndGet(id, entity -> {
+                            modifications.incrementAndGet();
+                            modifiedFrom.add(0, cloneEntity(entity));
+                            changeEntity(entity);
+                            return entity;
+                        });
+                        updatedFrom.add(modifiedFrom.get(0));
+                    } else {
+                        assertTrue(entityService.get(id) != null, "Entity was not found");
+                    }
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+            t.start();
+        }
+        countDownLatch.await();
+        int updates = (numberOfThreads + 1) / 2;
+        assertTrue(updatedFrom.size() == updates, (updates - updatedFrom.size()) + " updates were lost");
+        assertTrue(modifications.get() == updates, "Modifier was called " + modifications.get() + " times for " + updates + " updates");
+
+        int readers = 8;
+        System.out.println("Updating the entity while " + readers + " threads constantly read it");
+        AtomicInteger stop = new AtomicInteger();
+        CountDownLatch readersLatch = new CountDownLatch(readers);
+        for (int i=0; i<readers; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    while (stop.get() == 0) {
+                        entityService.get(id);
+                    }
+                } finally {
+                    readersLatch.countDown();
+                }
+            });
+            t.start();
+        }
+        Thread.sleep(20);
+        long start = System.nanoTime();
+        for (int i=0; i<10; i++) {
+            entityService.updateAndGet(id, entity -> {
+                changeEntity(entity);
+                return entity;
+            });
+        }
+        long updateMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        stop.set(1);
+        readersLatch.await();
+        System.out.println("10 updates took " + updateMillis + " ms");
+        assertTrue(updateMillis < 1000, "Updates were starved by reads: 10 updates took " + updateMillis + " ms");
+    }
+
+    /**
+     * One writer updates two entities one after another many times while reader threads read both of them
+     * through snapshots: every snapshot must see the same update of both entities or the next update of the first one.
+     * Readers must not block on entity locks held by writers, versions which open snapshots can't see
+     * must be garbage-collected.
+     */
+    protected void testMvccService() throws InterruptedException {
+        final EntityLocker<K> entityLocker = new EntityLocker<>();
+        final MvccEntityServiceImpl<K, T> entityService = new MvccEntityServiceImpl<>(
+                getEntityService(), entityLocker, this::getEntityId, this::cloneEntity);
+
+        int updates = 500;
+        int readers = 10;
+        int readsPerReader = 200;
+        K firstId = entityService.create(createRandomEntity());
+        K secondId = entityService.create(createRandomEntity());
+        // states of the entities in the order they are written, created states first
+        List<T> firstStates = new ArrayList<>();
+        List<T> secondStates = new ArrayList<>();
+        firstStates.add(entityService.get(firstId));
+        secondStates.add(entityService.get(secondId));
+        for (int i=1; i<=updates; i++) {
+            T firstState = cloneEntity(firstStates.get(i - 1));
+            changeEntity(firstState);
+            firstStates.add(firstState);
+            T secondState = cloneEntity(secondStates.get(i - 1));
+            changeEntity(secondState);
+            secondStates.add(secondState);
+        }
+
+        System.out.println("Updating 2 entities " + updates + " times, reading them from " + readers + " threads");
+        AtomicInteger inconsistentReads = new AtomicInteger();
+        CountDownLatch countDownLatch = new CountDownLatch(readers + 1);
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i=1; i<=updates; i++) {
+                    entityService.update(cloneEntity(firstStates.get(i)));
+                    entityService.update(cloneEntity(secondStates.get(i)));
+                }
+            } finally {
+                countDownLatch.countDown();
+            }
+        });
+        writer.start();
+        for (int i=0; i<readers; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    for (int j=0; j<readsPerReader; j++) {
+                        Map<K, T> entities = entityService.getAll(Arrays.asList(firstId, secondId));
+                        int firstIndex = indexOf(firstStates, entities.get(firstId));
+                        int secondIndex = indexOf(secondStates, entities.get(secondId));
+                        if (firstIndex < 0 || firstIndex != secondIndex && firstIndex != secondIndex + 1) {
+                            inconsistentReads.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+            t.start();
+        }
+        countDownLatch.await();
+        System.out.println(entityService.getLastCommittedVersion() + " commits, " + entityService.getCollectedCount()
+                + " versions collected, " + entityService.getVersionCount() + " versions kept");
+        assertTrue(inconsistentReads.get() == 0, inconsistentReads.get() + " snapshots were inconsistent");
+        assertTrue(checkEquals(entityService.get(firstId), firstStates.get(updates)), "Last update was not read");
+
+        // readers don't wait for writers
+        CountDownLatch readLatch = new CountDownLatch(1);
+        entityLocker.lock(firstId);
+        try {
+            new Thread(() -> {
+                entityService.get(firstId);
+                entityService.getAll(Arrays.asList(firstId, secondId));
+                readLatch.countDown();
+            }).start();
+            assertTrue(readLatch.await(1, TimeUnit.SECONDS), "Reader was blocked by entity lock");
+        } finally {
+            entityLocker.unlock(firstId);
+        }
+
+        // open snapshot keeps the versions it sees
+        entityService.collectGarbage();
+        assertTrue(entityService.getVersionCount() == 2, "Old versions were not collected");
+        MvccEntityServiceImpl<K, T>.Snapshot snapshot = entityService.snapshot();
+        T firstChanged = cloneEntity(firstStates.get(updates));
+        changeEntity(firstChanged);
+        entityService.update(firstChanged);
+        entityService.delete(secondId);
+        entityService.collectGarbage();
+        assertTrue(checkEquals(snapshot.get(firstId), firstStates.get(updates)), "Snapshot sees changed entity");
+        assertTrue(snapshot.get(secondId) != null, "Snapshot doesn't see deleted entity");
+        assertTrue(entityService.get(secondId) == null, "Deleted entity was found");
+        assertTrue(entityService.getVersionCount() == 4, "Versions of open snapshot were collected");
+        snapshot.close();
+        entityService.collectGarbage();
+        assertTrue(entityService.getVersionCount() == 1, "Versions of closed snapshot were not collected");
+    }
+
+    private int indexOf(List<T> states, T entity) {
+        for (int i=states.size() - 1; i>=0; i--) {
+            if (checkEquals(states.get(i), entity)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Test updates entities quickly from most threads and slowly from a few threads with {@link LockProfiler} enabled,
+     * and checks that all slow holds were recorded with their stack traces.
+     */
+    protected void testLockProfiler() throws InterruptedException {
+        final BaseEntityService<K, T> entityService = getEntityService();
+        final EntityLocker<K> entityLocker = new EntityLocker<>();
+        LockProfiler profiler = new LockProfiler(0.1, 10, TimeUnit.MILLISECONDS);
+        entityLocker.setProfiler(profiler);
+
+        int slowThreads = 5;
+        System.out.println("Updating entities from " + numberOfThreads + " threads, " + slowThreads + " of them slowly");
+        List<K> ids = new ArrayList<>();
+        for (int i=0; i<numberOfEntities; i++) {
+            ids.add(entityService.create(createRandomEntity()));
+        }
+        CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
+        for (int i=0; i<numberOfThreads; i++) {
+            final boolean slow = i < slowThreads;
+            Thread t = new Thread(() -> {
+                try {
+                    K id = ids.get(randomNumber(0, ids.size() - 1));
+                    if (slow) {
+                        slowUpdate(entityLocker, entityService, id);
+                    } else {
+                        quickUpdate(entityLocker, entityService, id);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+            t.start();
+        }
+        countDownLatch.await();
+        System.out.println(profiler);
+        List<CallSiteProfile> report = profiler.getReport();
+        long slowCount = 0;
+        for (CallSiteProfile profile : report) {
+            if (profile.getCallSite().contains("slowUpdate")) {
+                slowCount += profile.getSlowCount();
+                assertTrue(profile.getMaxHoldNanos() >= TimeUnit.MILLISECONDS.toNanos(20), "Slow hold time was not recorded");
+                assertTrue(profile.getSlowestStackTrace().length > 0, "Slow hold stack trace was not captured");
+            }
+        }
+        assertTrue(slowCount == slowThreads, "Recorded " + slowCount + " slow holds instead of " + slowThreads);
+    }
+
+    /**
+     * Each of N owner threads updates its own entity many times, so its entity lock gets biased to it.
+     * Other threads update random entities from time to time revoking the biases, one thread takes the global lock.
+     * Counters updated under the locks must not lose any update.
+     */
+    protected void testBiasedLocking() throws InterruptedException {
+        final BaseEntityService<K, T> entityService = getEntityService();
+        final EntityLocker<K> entityLocker = new EntityLocker<>();
+        entityLocker.setEntityLockType(EntityLockType.BIASED);
+
+        int updatesPerOwner = 10_000;
+        int contenders = 10;
+        List<K> ids = new ArrayList<>();
+        for (int i=0; i<numberOfEntities; i++) {
+            ids.add(entityService.create(createRandomEntity()));
+        }
+        System.out.println("Updating " + numberOfEntities + " entities by their owners " + updatesPerOwner + " times, "
+                + contenders + " threads update random entities");
+        int[] updateCounters = new int[numberOfEntities];
+        AtomicInteger maxBiasedLocks = new AtomicInteger();
+        CountDownLatch countDownLatch = new CountDownLatch(numberOfEntities + contenders + 1);
+        for (int i=0; i<numberOfEntities; i++) {
+            final int index = i;
+            Thread t = new Thread(() -> {
+                try {
+                    for (int j=0; j<updatesPerOwner; j++) {
+                        entityLocker.lock(ids.get(index));
+                        try {
+                            updateCounters[index]++;
+                        } finally {
+                            entityLocker.unlock(ids.get(index));
+                        }
+                        maxBiasedLocks.accumulateAndGet(entityLocker.getBiasedLockCount(), Math::max);
+                    }
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+            t.start();
+        }
+        for (int i=0; i<contenders; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    for (int j=0; j<10; j++) {
+                        int index = randomNumber(0, numberOfEntities - 1);
+                        quickUpdate(entityLocker, entityService, ids.get(index), () -> updateCounters[index]++);
+                        Thread.sleep(1);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+            t.start();
+        }
+        Thread globalLocker = new Thread(() -> {
+            try {
+                for (int j=0; j<10; j++) {
+                    entityLocker.globalLock();
+                    try {
+                        int before = Arrays.stream(updateCounters).sum();
+                        Thread.sleep(1);
+                        int after = Arrays.stream(updateCounters).sum();
+                        assertTrue(before == after, "Entities were updated under global lock");
+                    } finally {
+                        entityLocker.globalUnlock();
+                    }
+                    Thread.sleep(1);
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } finally {
+                countDownLatch.countDown();
+            }
+        });
+        globalLocker.start();
+        countDownLatch.await();
+
+        int expectedUpdates = numberOfEntities * updatesPerOwner + contenders * 10;
+        int updates = Arrays.stream(updateCounters).sum();
+        System.out.println("Biased locks at most: " + maxBiasedLocks.get() + ", " + entityLocker.snapshot());
+        assertTrue(updates == expectedUpdates, "Counted " + updates + " updates instead of " + expectedUpdates);
+        assertTrue(maxBiasedLocks.get() > 0, "No entity lock was biased");
+    }
+
+    /**
+     * Test thread holds an entity lock while low priority threads and then high priority threads block on it.
+     * After release high priority threads must get the lock ahead of low priority ones, except the low priority thread
+     * which was already admitted to the lock. With short aging low priority threads which waited long go first.
+     * The same for threads waiting for global lock.
+     */
+    protected void testLockPriority() throws InterruptedException {
+        final BaseEntityService<K, T> entityService = getEntityService();
+        final EntityLocker<K> entityLocker = new EntityLocker<>();
+        K id = entityService.create(createRandomEntity());
+        int waitersPerClass = 5;
+
+        entityLocker.setPriorityAging(1, TimeUnit.MINUTES);
+        List<LockPriority> order = grantOrder(entityLocker, id, waitersPerClass, false);
+        System.out.println("Entity lock granted without aging: " + order);
+        // the low priority waiter admitted first may get the lock before high priority ones arrived
+        assertTrue(lowBeforeHigh(order.subList(1, order.size())) == 0, "Low priority waiters were granted entity lock ahead of high priority ones");
+        order = grantOrder(entityLocker, id, waitersPerClass, true);
+        System.out.println("Global lock granted without aging: " + order);
+        assertTrue(lowBeforeHigh(order) == 0, "Low priority waiters were granted global lock ahead of high priority ones");
+
+        entityLocker.setPriorityAging(1, TimeUnit.MILLISECONDS);
+        order = grantOrder(entityLocker, id, waitersPerClass, false);
+        System.out.println("Entity lock granted with aging: " + order);
+        assertTrue(lowBeforeHigh(order) == waitersPerClass * waitersPerClass, "Aged low priority waiters were not granted entity lock first");
+        order = grantOrder(entityLocker, id, waitersPerClass, true);
+        System.out.println("Global lock granted with aging: " + order);
+        assertTrue(lowBeforeHigh(order) == waitersPerClass * waitersPerClass, "Aged low priority waiters were not granted global lock first");
+
+        for (LockPriority priority : new LockPriority[]{LockPriority.HIGH, LockPriority.LOW}) {
+            WaitStatistics statistics = entityLocker.getWaitStatistics(priority);
+            WaitStatistics globalStatistics = entityLocker.getGlobalWaitStatistics(priority);
+            System.out.println(statistics + ", global " + globalStatistics);
+            assertTrue(statistics.getWaitCount() == 2 * waitersPerClass, "Entity lock waits of " + priority + " were not recorded");
+            assertTrue(globalStatistics.getWaitCount() == 2 * waitersPerClass, "Global lock waits of " + priority + " were not recorded");
+        }
+        assertTrue(entityLocker.getWaitStatistics(LockPriority.LOW).getMaxWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(50),
+                "Low priority wait time is too short");
+    }
+
+    /**
+     * Blocks low priority threads and after 50 ms high priority threads on the entity lock (or global lock)
+     * held by current thread, then releases the lock.
+     * @return priorities of the threads in the order they got the lock
+     */
+    private List<LockPriority> grantOrder(EntityLocker<K> entityLocker, K id, int waitersPerClass, boolean global) throws InterruptedException {
+        List<LockPriority> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch countDownLatch = new CountDownLatch(2 * waitersPerClass);
+        entityLocker.lock(id);
+        for (LockPriority priority : new LockPriority[]{LockPriority.LOW, LockPriority.HIGH}) {
+            for (int i=0; i<waitersPerClass; i++) {
+                Thread t = new Thread(() -> {
+                    try {
+                        if (global) {
+                            entityLocker.globalLock(priority);
+                            order.add(priority);
+                            entityLocker.globalUnlock();
+                        } else {
+                            entityLocker.lock(id, priority);
+                            order.add(priority);
+                            entityLocker.unlock(id);
+                        }
+                    } finally {
+                        countDownLatch.countDown();
+                    }
+                });
+                t.start();
+            }
+            int waiters = priority == LockPriority.LOW ? waitersPerClass : 2 * waitersPerClass;
+            while ((global ? entityLocker.snapshot().getGlobalQueueLength() : entityLocker.getEntityWaiters()) < waiters) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(50);
+        }
+        entityLocker.unlock(id);
+        countDownLatch.await();
+        return order;
+    }
+
+    /**
+     * @return number of pairs of low and high priority where low priority goes first
+     */
+    private static int lowBeforeHigh(List<LockPriority> order) {
+        int pairs = 0;
+        int lows = 0;
+        for (LockPriority priority : order) {
+            if (priority == LockPriority.LOW) {
+                lows++;
+            } else {
+                pairs += lows;
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Test checks that lock escalation doesn't deadlock with the global lock:
+     * - thread holding entity locks escalates while another thread is already waiting for global lock -
+     *   escalating thread goes first, as the waiting global lock can't get ahead of its entity locks anyway
+     * - thread escalates while another thread is blocked on one of its entity locks - global lock doesn't wait
+     *   for the blocked thread, which gets the entity lock only after global lock is released
+     */
+    protected void testGlobalLockEscalationDeadlock() throws InterruptedException {
+        final BaseEntityService<K, T> entityService = getEntityService();
+        final EntityLocker<K> entityLocker = new EntityLocker<>();
+        entityLocker.setGlobalEscalationThreshold(3);
+        List<K> ids = new ArrayList<>();
+        for (int i=0; i<4; i++) {
+            ids.add(entityService.create(createRandomEntity()));
+        }
+
+        System.out.println("Escalating to global lock while another thread is waiting for global lock");
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch escalate = new CountDownLatch(1);
+        CountDownLatch escalated = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread escalating = new Thread(() -> {
+            try {
+                for (K id : ids.subList(0, 3)) {
+                    entityLocker.lock(id);
+                }
+                locked.countDown();
+                escalate.await();
+                entityLocker.lock(ids.get(3));
+                assertTrue(entityLocker.isGlobalLock(), "Lock is not escalated to global");
+                escalated.countDown();
+                release.await();
+                for (K id : ids) {
+                    entityLocker.unlock(id);
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        escalating.start();
+        locked.await();
+        CountDownLatch globalLocked = new CountDownLatch(1);
+        Thread global = new Thread(() -> {
+            entityLocker.globalLock();
+            globalLocked.countDown();
+            entityLocker.globalUnlock();
+        });
+        global.start();
+        while (entityLocker.snapshot().getGlobalQueueLength() < 1) {
+            Thread.sleep(1);
+        }
+        escalate.countDown();
+        assertTrue(escalated.await(2, TimeUnit.SECONDS), "Escalation deadlocked behind global lock waiter");
+        assertTrue(globalLocked.getCount() == 1, "Global lock was acquired while escalated lock was held");
+        release.countDown();
+        assertTrue(globalLocked.await(2, TimeUnit.SECONDS), "Global lock was not acquired after escalated lock was released");
+        escalating.join();
+        global.join();
+
+        System.out.println("Escalating to global lock while another thread is blocked on escalating thread's entity lock");
+        CountDownLatch locked2 = new CountDownLatch(1);
+        CountDownLatch escalate2 = new CountDownLatch(1);
+        CountDownLatch escalated2 = new CountDownLatch(1);
+        CountDownLatch blockedLocked = new CountDownLatch(1);
+        Thread escalating2 = new Thread(() -> {
+            try {
+                for (K id : ids.subList(0, 3)) {
+                    entityLocker.lock(id);
+                }
+                locked2.countDown();
+                escalate2.await();
+                entityLocker.lock(ids.get(3));
+                escalated2.countDown();
+                // blocked thread may not get the released entity lock while global lock is held
+                entityLocker.unlock(ids.get(0));
+                Thread.sleep(50);
+                assertTrue(blockedLocked.getCount() == 1, "Entity lock was acquired while global lock was held");
+                for (K id : ids.subList(1, 4)) {
+                    entityLocker.unlock(id);
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        escalating2.start();
+        locked2.await();
+        Thread blocked = new Thread(() -> {
+            entityLocker.lock(ids.get(0));
+            blockedLocked.countDown();
+            entityLocker.unlock(ids.get(0));
+        });
+        blocked.start();
+        while (entityLocker.getEntityWaiters() < 1) {
+            Thread.sleep(1);
+        }
+        escalate2.countDown();
+        assertTrue(escalated2.await(2, TimeUnit.SECONDS), "Escalation deadlocked waiting for thread blocked on own entity lock");
+        assertTrue(blockedLocked.await(2, TimeUnit.SECONDS), "Blocked thread didn't get entity lock after global lock was released");
+        escalating2.join();
+        blocked.join();
+        assertTrue(!entityLocker.isGlobalLock(), "Global lock is not released");
+    }
+
+    /**
+     * Test checks global lock fairness policies:
+     * - how many new entity lockers pass while global lock is requested
+     * - who goes first after global lock is released: entity locker waiting at the gate or later global lock request
+     */
+    protected void testGlobalLockFairness() throws InterruptedException {
+        final BaseEntityService<K, T> entityService = getEntityService();
+        int lockers = 5;
+        for (GlobalLockFairness fairness : GlobalLockFairness.values()) {
+            final EntityLocker<K> entityLocker = new EntityLocker<>();
+            entityLocker.setGlobalLockFairness(fairness);
+            entityLocker.setMaxGlobalBypass(2);
+            K heldId = entityService.create(createRandomEntity());
+
+            // global lock requested while current thread holds an entity lock
+            entityLocker.lock(heldId);
+            Thread global = new Thread(() -> {
+                entityLocker.globalLock();
+                entityLocker.globalUnlock();
+            });
+            global.start();
+            while (entityLocker.snapshot().getGlobalQueueLength() < 1) {
+                Thread.sleep(1);
+            }
+            AtomicInteger passed = new AtomicInteger();
+            CountDownLatch countDownLatch = new CountDownLatch(lockers);
+            for (int i=0; i<lockers; i++) {
+                K id = entityService.create(createRandomEntity());
+                Thread t = new Thread(() -> {
+                    try {
+                        if (entityLocker.tryLock(id, 100, TimeUnit.MILLISECONDS)) {
+                            passed.incrementAndGet();
+                            entityLocker.unlock(id);
+                        }
+                    } finally {
+                        countDownLatch.countDown();
+                    }
+                });
+                t.start();
+            }
+            countDownLatch.await();
+            entityLocker.unlock(heldId);
+            global.join();
+            int expected = fairness == GlobalLockFairness.BOUNDED_BYPASS ? 2 : 0;
+            System.out.println(fairness + ": " + passed.get() + " of " + lockers + " new entity lockers passed while global lock was requested");
+            assertTrue(passed.get() == expected, fairness + " let " + passed.get() + " new entity lockers pass instead of " + expected);
+
+            // entity locker waits at the gate for global lock, then another global lock is requested
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            entityLocker.globalLock();
+            Thread entity = new Thread(() -> {
+                entityLocker.lock(heldId);
+                order.add("entity");
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    entityLocker.unlock(heldId);
+                }
+            });
+            entity.start();
+            Thread.sleep(50);
+            Thread global2 = new Thread(() -> {
+                entityLocker.globalLock();
+                order.add("global");
+                entityLocker.globalUnlock();
+            });
+            global2.start();
+            while (entityLocker.snapshot().getGlobalQueueLength() < 1) {
+                Thread.sleep(1);
+            }
+            entityLocker.globalUnlock();
+            entity.join();
+            global2.join();
+            System.out.println(fairness + ": granted after global lock " + order);
+            if (fairness == GlobalLockFairness.FIFO) {
+                assertTrue(order.equals(Arrays.asList("entity", "global")), "FIFO didn't grant entity locker which arrived first");
+            } else if (fairness == GlobalLockFairness.WRITER_PREFERENCE) {
+                assertTrue(order.equals(Arrays.asList("global", "entity")), "WRITER_PREFERENCE didn't grant global lock first");
+            }
+        }
+    }
+
+    /**
+     * Test checks timed locking:
+     * - tryGlobalLock fails while an entity is locked, new entity lockers pass again after it gave up
+     * - tryLock gives up at the deadline while global lock is held
+     * - tryLock with negative timeout doesn't wait
+     */
+    protected void testTimedLocking() throws InterruptedException {
+        final BaseEntityService<K, T> entityService = getEntityService();
+        final EntityLocker<K> entityLocker = new EntityLocker<>();
+        K id1 = entityService.create(createRandomEntity());
+        K id2 = entityService.create(createRandomEntity());
+
+        System.out.println("Trying global lock while entity is locked by another thread");
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            entityLocker.lock(id1);
+            locked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } finally {
+                entityLocker.unlock(id1);
+            }
+        });
+        holder.start();
+        locked.await();
+        assertTrue(!entityLocker.tryGlobalLock(50, TimeUnit.MILLISECONDS), "Global lock was acquired while entity was locked");
+        assertTrue(entityLocker.snapshot().getGlobalQueueLength() == 0, "Timed out global lock request is still queued");
+        boolean[] passed = new boolean[1];
+        Thread entity = new Thread(() -> {
+            passed[0] = entityLocker.tryLock(id2, 0, TimeUnit.MILLISECONDS);
+            if (passed[0]) entityLocker.unlock(id2);
+        });
+        entity.start();
+        entity.join();
+        assertTrue(passed[0], "Entity locker didn't pass after global lock request timed out");
+        release.countDown();
+        holder.join();
+        assertTrue(entityLocker.tryGlobalLock(50, TimeUnit.MILLISECONDS), "Global lock was not acquired after entity was unlocked");
+
+        System.out.println("Trying entity lock with timeout while global lock is held");
+        long[] waited = new long[1];
+        entity = new Thread(() -> {
+            long start = System.nanoTime();
+            passed[0] = entityLocker.tryLock(id2, 100, TimeUnit.MILLISECONDS);
+            waited[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        });
+        entity.start();
+        entity.join(1000);
+        assertTrue(!passed[0], "Entity was locked while global lock was held");
+        assertTrue(waited[0] >= 90 && waited[0] < 180, "tryLock didn't give up at the deadline, waited " + waited[0] + " ms");
+        entityLocker.globalUnlock();
+
+        System.out.println("Trying entity lock with negative timeout");
+        assertTrue(entityLocker.tryLock(id2, -1, TimeUnit.MILLISECONDS), "Free entity was not locked with negative timeout");
+        entityLocker.unlock(id2);
+        entityLocker.lock(id1);
+        entity = new Thread(() -> {
+            long start = System.nanoTime();
+            passed[0] = entityLocker.tryLock(id1, -1, TimeUnit.MILLISECONDS);
+            waited[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        });
+        entity.start();
+        entity.join();
+        entityLocker.unlock(id1);
+        assertTrue(!passed[0], "Entity locked by another thread was locked with negative timeout");
+        assertTrue(waited[0] < 50, "tryLock with negative timeout waited " + waited[0] + " ms");
+    }
+
+    /**
+     * Test checks {@link Transaction}:
+     * - buffered writes are not visible to other threads and touched entities stay locked until commit
+     * - commit applies updates and deletes with a single batch write and releases all locks
+     * - rollback and close discard buffered writes and release all locks
+     * - touching more entities than escalation threshold escalates to global lock, commit releases it
+     */
+    protected void testTransaction() throws InterruptedException {
+        final CountingBatchService<K, T> entityService = new CountingBatchService<>(getEntityService());
+        final EntityLocker<K> entityLocker = new EntityLocker<>();
+        entityLocker.setGlobalEscalationThreshold(3);
+        T entity1 = createRandomEntity();
+        K id1 = entityService.create(entity1);
+        setEntityId(entity1, id1);
+        K id2 = entityService.create(createRandomEntity());
+
+        System.out.println("Updating and deleting entities in transaction");
+        T changed1;
+        try (Transaction<K, T> tx = new Transaction<>(entityLocker, entityService, this::getEntityId)) {
+            changed1 = tx.get(id1);
+            changeEntity(changed1);
+            tx.update(changed1);
+            tx.delete(id2);
+            assertTrue(checkEquals(tx.get(id1), changed1), "Transaction doesn't see its own update");
+            assertTrue(tx.get(id2) == null, "Transaction doesn't see its own delete");
+            assertTrue(checkEquals(entityService.get(id1), entity1), "Buffered update is visible before commit");
+            assertTrue(entityService.get(id2) != null, "Buffered delete is visible before commit");
+            assertTrue(!tryLockInOtherThread(entityLocker, id1) && !tryLockInOtherThread(entityLocker, id2),
+                    "Entity touched by transaction is not locked");
+            tx.commit();
+            assertTrue(tx.isFinished(), "Committed transaction is not finished");
+        }
+        assertTrue(entityService.writeAllCount.get() == 1, "Commit made " + entityService.writeAllCount.get() + " batch writes");
+        assertTrue(entityService.singleWriteCount.get() == 0, "Commit wrote entities one by one");
+        assertTrue(checkEquals(entityService.get(id1), changed1), "Update was not applied on commit");
+        assertTrue(entityService.get(id2) == null, "Delete was not applied on commit");
+        assertTrue(entityLocker.snapshot().getLockedEntities().isEmpty(), "Entities are still locked after commit");
+        assertTrue(tryLockInOtherThread(entityLocker, id1), "Entity can't be locked after commit");
+
+        System.out.println("Rolling back transaction explicitly and by closing it");
+        for (boolean explicit : new boolean[]{true, false}) {
+            try (Transaction<K, T> tx = new Transaction<>(entityLocker, entityService, this::getEntityId)) {
+                T entity = tx.get(id1);
+                changeEntity(entity);
+                tx.update(entity);
+                tx.delete(id1);
+                if (explicit) {
+                    tx.rollback();
+                }
+            }
+            assertTrue(checkEquals(entityService.get(id1), changed1), "Rolled back changes were applied");
+            assertTrue(entityLocker.snapshot().getLockedEntities().isEmpty(), "Entities are still locked after rollback");
+            assertTrue(tryLockInOtherThread(entityLocker, id1), "Entity can't be locked after rollback");
+        }
+        assertTrue(entityService.writeAllCount.get() == 1, "Rolled back transaction made a batch write");
+
+        System.out.println("Touching more entities in transaction than escalation threshold");
+        List<K> ids = new ArrayList<>();
+        for (int i=0; i<4; i++) {
+            ids.add(entityService.create(createRandomEntity()));
+        }
+        List<T> updated = new ArrayList<>();
+        Transaction<K, T> tx = new Transaction<>(entityLocker, entityService, this::getEntityId);
+        for (K id : ids) {
+            T entity = tx.get(id);
+            setEntityId(entity, id);
+            changeEntity(entity);
+            tx.update(entity);
+            updated.add(entity);
+        }
+        assertTrue(entityLocker.isGlobalLock(), "Transaction didn't escalate to global lock");
+        assertTrue(!tryLockInOtherThread(entityLocker, id1), "Entity not touched by transaction can be locked during escalation");
+        tx.commit();
+        assertTrue(!entityLocker.isGlobalLock(), "Escalated global lock is not released after commit");
+        assertTrue(entityLocker.snapshot().getEscalatedThreadNames().isEmpty(), "Thread is still escalated after commit");
+        assertTrue(entityLocker.snapshot().getLockedEntities().isEmpty(), "Entities are still locked after escalated commit");
+        assertTrue(tryLockInOtherThread(entityLocker, id1), "Entity can't be locked after escalated commit");
+        for (int i=0; i<ids.size(); i++) {
+            assertTrue(checkEquals(entityService.get(ids.get(i)), updated.get(i)), "Escalated transaction update was not applied");
+        }
+    }
+
+    /**
+     * Test checks {@link LockHandle}:
+     * - handle locks are reentrant and exclusive the same as locks by id
+     * - locks taken by handle can be released by id and vice versa
+     * - locking through handles escalates to global lock
+     * - global lock waits for locks held through handles, handle waits for global lock
+     */
+    protected void testLockHandle() throws InterruptedException {
+        final BaseEntityService<K, T> entityService = getEntityService();
+        final EntityLocker<K> entityLocker = new EntityLocker<>();
+        entityLocker.setGlobalEscalationThreshold(globalEscalationThreshold);
+        List<K> ids = new ArrayList<>();
+        List<LockHandle<K>> handles = new ArrayList<>();
+        for (int i=0; i<=globalEscalationThreshold; i++) {
+            K id = entityService.create(createRandomEntity());
+            ids.add(id);
+            handles.add(entityLocker.handle(id));
+        }
+        K id = ids.get(0);
+        LockHandle<K> handle = handles.get(0);
+
+        System.out.println("Locking reentrantly through handle");
+        handle.lock();
+        handle.lock();
+        assertTrue(handle.tryLock(0, TimeUnit.MILLISECONDS), "Handle lock is not reentrant");
+        assertTrue(handle.isLocked(), "Handle is not locked");
+        assertTrue(!tryLockInOtherThread(entityLocker, id), "Entity locked through handle was locked by other thread");
+        handle.unlock();
+        handle.unlock();
+        assertTrue(!tryLockInOtherThread(entityLocker, id), "Entity was released before all reentrant holds were released");
+        handle.unlock();
+        assertTrue(!handle.isLocked(), "Handle is still locked");
+        assertTrue(tryLockInOtherThread(entityLocker, id), "Entity released through handle can't be locked by other thread");
+
+        System.out.println("Mixing handle and id locking");
+        handle.lock();
+        entityLocker.unlock(id);
+        assertTrue(!handle.isLocked(), "Handle lock was not released by id");
+        entityLocker.lock(id);
+        handle.unlock();
+        assertTrue(!handle.isLocked(), "Lock by id was not released through handle");
+        handle.lock();
+        entityLocker.lock(id);
+        handle.unlock();
+        assertTrue(!tryLockInOtherThread(entityLocker, id), "Entity was released before all mixed holds were released");
+        entityLocker.unlock(id);
+        assertTrue(entityLocker.snapshot().getLockedEntities().isEmpty() && tryLockInOtherThread(entityLocker, id),
+                "Entity is still locked after mixed holds were released");
+
+        System.out.println("Escalating to global lock through handles");
+        for (LockHandle<K> h : handles) {
+            h.lock();
+        }
+        assertTrue(entityLocker.isGlobalLock(), "Locking through handles didn't escalate to global lock");
+        K otherId = entityService.create(createRandomEntity());
+        assertTrue(!tryLockInOtherThread(entityLocker, otherId), "Entity was locked by other thread during escalation");
+        for (LockHandle<K> h : handles) {
+            h.unlock();
+        }
+        assertTrue(!entityLocker.isGlobalLock(), "Escalated global lock is not released after handles were unlocked");
+        assertTrue(entityLocker.snapshot().getLockedEntities().isEmpty(), "Entities are still locked after escalation");
+
+        System.out.println("Global lock waits for locks held through handles");
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            handle.lock();
+            locked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } finally {
+                handle.unlock();
+            }
+        });
+        holder.start();
+        locked.await();
+        CountDownLatch globalLocked = new CountDownLatch(1);
+        Thread global = new Thread(() -> {
+            entityLocker.globalLock();
+            globalLocked.countDown();
+            entityLocker.globalUnlock();
+        });
+        global.start();
+        assertTrue(!globalLocked.await(50, TimeUnit.MILLISECONDS), "Global lock was acquired while entity was locked through handle");
+        release.countDown();
+        assertTrue(globalLocked.await(2, TimeUnit.SECONDS), "Global lock was not acquired after handle was unlocked");
+        holder.join();
+        global.join();
+
+        entityLocker.globalLock();
+        boolean[] handleLocked = new boolean[1];
+        Thread t = new Thread(() -> {
+            handleLocked[0] = handles.get(1).tryLock(50, TimeUnit.MILLISECONDS);
+            if (handleLocked[0]) handles.get(1).unlock();
+        });
+        t.start();
+        t.join();
+        entityLocker.globalUnlock();
+        assertTrue(!handleLocked[0], "Entity was locked through handle while global lock was held");
+    }
+
+    /**
+     * Test checks {@link EntityLockType#QUEUED} entity locks:
+     * - threads updating the same entity exclude each other
+     * - locks are reentrant
+     * - timed tryLock gives up at timeout and gets the lock when it's released meanwhile
+     * - global lock waits for queued entity locks and blocks them, locking escalates to global lock
+     */
+    protected void testQueuedEntityLock() throws InterruptedException {
+        final BaseEntityService<K, T> entityService = getEntityService();
+        final EntityLocker<K> entityLocker = new EntityLocker<>();
+        entityLocker.setEntityLockType(EntityLockType.QUEUED);
+        entityLocker.setGlobalEscalationThreshold(globalEscalationThreshold);
+        K id = entityService.create(createRandomEntity());
+
+        int threads = 50;
+        int iterations = 100;
+        System.out.println(threads + " threads incrementing a counter under queued entity lock " + iterations + " times each");
+        int[] counter = new int[1];
+        AtomicInteger inside = new AtomicInteger();
+        CountDownLatch countDownLatch = new CountDownLatch(threads);
+        for (int i=0; i<threads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    for (int j=0; j<iterations; j++) {
+                        entityLocker.lock(id);
+                        try {
+                            assertTrue(inside.incrementAndGet() == 1, "Two threads hold queued entity lock");
+                            int value = counter[0];
+                            Thread.yield();
+                            counter[0] = value + 1;
+                            inside.decrementAndGet();
+                        } finally {
+                            entityLocker.unlock(id);
+                        }
+                    }
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+            t.start();
+        }
+        countDownLatch.await();
+        assertTrue(counter[0] == threads * iterations, "Lost updates under queued entity lock: " + counter[0] + " of " + threads * iterations);
+
+        System.out.println("Locking queued entity lock reentrantly");
+        entityLocker.lock(id);
+        assertTrue(entityLocker.tryLock(id, 0, TimeUnit.MILLISECONDS), "Queued entity lock is not reentrant");
+        entityLocker.unlock(id);
+        assertTrue(!tryLockInOtherThread(entityLocker, id), "Entity was released before all reentrant holds were released");
+        entityLocker.unlock(id);
+        assertTrue(tryLockInOtherThread(entityLocker, id), "Entity can't be locked after all reentrant holds were released");
+
+        System.out.println("Trying queued entity lock with timeout");
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            entityLocker.lock(id);
+            locked.countDown();
+            try {
+                release.await();
+                Thread.sleep(30);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } finally {
+                entityLocker.unlock(id);
+            }
+        });
+        holder.start();
+        locked.await();
+        long start = System.nanoTime();
+        assertTrue(!entityLocker.tryLock(id, 50, TimeUnit.MILLISECONDS), "Queued entity lock held by other thread was acquired");
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50), "Timed tryLock gave up before timeout");
+        release.countDown();
+        assertTrue(entityLocker.tryLock(id, 1, TimeUnit.SECONDS), "Queued entity lock released during timed tryLock was not acquired");
+        entityLocker.unlock(id);
+        holder.join();
+
+        System.out.println("Global lock with queued entity locks");
+        CountDownLatch locked2 = new CountDownLatch(1);
+        CountDownLatch release2 = new CountDownLatch(1);
+        holder = new Thread(() -> {
+            entityLocker.lock(id);
+            locked2.countDown();
+            try {
+                release2.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } finally {
+                entityLocker.unlock(id);
+            }
+        });
+        holder.start();
+        locked2.await();
+        assertTrue(!entityLocker.tryGlobalLock(50, TimeUnit.MILLISECONDS), "Global lock was acquired while queued entity lock was held");
+        release2.countDown();
+        holder.join();
+        entityLocker.globalLock();
+        assertTrue(!tryLockInOtherThread(entityLocker, id), "Queued entity lock was acquired while global lock was held");
+        entityLocker.globalUnlock();
+        List<K> ids = new ArrayList<>();
+        for (int i=0; i<=globalEscalationThreshold; i++) {
+            K entityId = entityService.create(createRandomEntity());
+            ids.add(entityId);
+            entityLocker.lock(entityId);
+        }
+        assertTrue(entityLocker.isGlobalLock(), "Queued entity locks didn't escalate to global lock");
+        assertTrue(!tryLockInOtherThread(entityLocker, id), "Queued entity lock was acquired during escalation");
+        for (K entityId : ids) {
+            entityLocker.unlock(entityId);
+        }
+        assertTrue(!entityLocker.isGlobalLock(), "Escalated global lock is not released");
+        assertTrue(tryLockInOtherThread(entityLocker, id), "Queued entity lock can't be acquired after escalation");
+    }
+
+    /**
+     * Test checks that {@link ShardedCounter} is exact:
+     * - sum of concurrent increments and decrements, sum never misses an increment of a decrement it has seen
+     * - decrement by other thread than the one which incremented, the same as biased lock revocation does at the gate
+     * Uncontended counter must not allocate shards.
+     */
+    protected void testShardedCounter() throws InterruptedException {
+        ShardedCounter uncontended = new ShardedCounter();
+        for (int i=0; i<1000; i++) {
+            uncontended.add(1);
+        }
+        uncontended.add(-1000);
+        assertTrue(!uncontended.isInflated(), "Uncontended counter allocated shards");
+        assertTrue(uncontended.sum() == 0, "Uncontended counter sum is " + uncontended.sum());
+
+        int threads = 16;
+        int iterations = 100_000;
+        System.out.println(threads + " threads incrementing and decrementing a counter " + iterations + " times each");
+        ShardedCounter counter = new ShardedCounter();
+        AtomicInteger stop = new AtomicInteger();
+        long[] minSum = {Long.MAX_VALUE};
+        Thread summer = new Thread(() -> {
+            while (stop.get() == 0) {
+                minSum[0] = Math.min(minSum[0], counter.sum());
+            }
+        });
+        summer.start();
+        CountDownLatch countDownLatch = new CountDownLatch(threads);
+        for (int i=0; i<threads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    for (int j=0; j<iterations; j++) {
+                        counter.add(1);
+                        counter.add(-1);
+                    }
+                    counter.add(1);
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+            t.start();
+        }
+        countDownLatch.await();
+        stop.set(1);
+        summer.join();
+        assertTrue(counter.sum() == threads, "Counter sum is " + counter.sum() + " instead of " + threads);
+        assertTrue(minSum[0] >= 0, "Sum missed an increment of a decrement it has seen: " + minSum[0]);
+
+        System.out.println("Decrementing counter from other threads");
+        Thread[] decrementers = new Thread[threads];
+        for (int i=0; i<threads; i++) {
+            decrementers[i] = new Thread(() -> counter.add(-1));
+            decrementers[i].start();
+        }
+        for (Thread t : decrementers) {
+            t.join();
+        }
+        assertTrue(counter.sum() == 0, "Counter sum after decrements by other threads is " + counter.sum());
+
+        System.out.println("Revoking biased locks - bias is uncounted at the gate by the revoking thread");
+        final BaseEntityService<K, T> entityService = getEntityService();
+        final EntityLocker<K> entityLocker = new EntityLocker<>();
+        entityLocker.setEntityLockType(EntityLockType.BIASED);
+        K id1 = entityService.create(createRandomEntity());
+        K id2 = entityService.create(createRandomEntity());
+        Thread owner = new Thread(() -> {
+            for (K id : Arrays.asList(id1, id2)) {
+                for (int i=0; i<100; i++) {
+                    entityLocker.lock(id);
+                    entityLocker.unlock(id);
+                }
+            }
+        });
+        owner.start();
+        owner.join();
+        assertTrue(entityLocker.getBiasedLockCount() == 2, entityLocker.getBiasedLockCount() + " locks are biased instead of 2");
+        assertTrue(entityLocker.snapshot().getEntityLockCount() == 2, "Biases are not counted at the gate");
+        // contending thread revokes the bias
+        entityLocker.lock(id1);
+        entityLocker.unlock(id1);
+        assertTrue(entityLocker.getBiasedLockCount() <= 1, "Bias was not revoked by contending thread");
+        // global lock requester revokes the remaining biases
+        assertTrue(entityLocker.tryGlobalLock(1, TimeUnit.SECONDS), "Global lock was not acquired after biases were revoked");
+        assertTrue(entityLocker.getBiasedLockCount() == 0, "Biases were not revoked by global lock requester");
+        entityLocker.globalUnlock();
+        assertTrue(entityLocker.snapshot().getEntityLockCount() == 0,
+                "Gate counts " + entityLocker.snapshot().getEntityLockCount() + " resources after biases were revoked");
+    }
+
+    /**
+     * Test checks that {@link LockGuard} releases entity locks and global lock on close, also when guards are nested,
+     * and that locks already taken by multi-entity acquire are released when it fails.
+     */
+    @SuppressWarnings("try")
+    protected void testLockGuard() throws InterruptedException {
+        final BaseEntityService<K, T> entityService = getEntityService();
+        final EntityLocker<K> entityLocker = new EntityLocker<>();
+        K id1 = entityService.create(createRandomEntity());
+        K id2 = entityService.create(createRandomEntity());
+
+        System.out.println("Locking entities with nested guards");
+        try (LockGuard<K> outer = entityLocker.acquire(Arrays.asList(id1, id2))) {
+            assertTrue(!tryLockInOtherThread(entityLocker, id1) && !tryLockInOtherThread(entityLocker, id2),
+                    "Entities acquired with guard are not locked");
+            try (LockGuard<K> inner = entityLocker.acquire(id1)) {
+                assertTrue(inner.depth() == 2, "Nested guard depth is " + inner.depth() + " instead of 2");
+            }
+            assertTrue(outer.depth() == 1, "Closing nested guard didn't pop it, depth is " + outer.depth());
+            assertTrue(!tryLockInOtherThread(entityLocker, id1), "Closing nested guard released reentrant lock of outer guard");
+        }
+        assertTrue(tryLockInOtherThread(entityLocker, id1) && tryLockInOtherThread(entityLocker, id2),
+                "Entities are still locked after guard was closed");
+        assertTrue(entityLocker.snapshot().getLockedEntities().isEmpty(), "Entities are still locked after guard was closed");
+
+        System.out.println("Acquiring global lock with guard");
+        try (LockGuard<K> guard = entityLocker.acquireGlobal()) {
+            assertTrue(entityLocker.isGlobalLock(), "Global lock is not acquired with guard");
+            assertTrue(!tryLockInOtherThread(entityLocker, id1), "Entity was locked by other thread while global lock was held");
+            try (LockGuard<K> inner = entityLocker.acquire(id2)) {
+                assertTrue(inner.depth() == 2, "Guard of entity locked under global lock is not nested");
+            }
+            assertTrue(entityLocker.isGlobalLock(), "Closing nested guard released global lock");
+        }
+        assertTrue(!entityLocker.isGlobalLock(), "Global lock is not released after guard was closed");
+        assertTrue(tryLockInOtherThread(entityLocker, id1), "Entity can't be locked after global lock guard was closed");
+
+        System.out.println("Failing to acquire entities with guard in the middle of collection");
+        boolean failed = false;
+        try (LockGuard<K> guard = entityLocker.acquire(Arrays.asList(id1, id2, null))) {
+            assertTrue(false, "Entities with null id were acquired");
+        } catch (NullPointerException e) {
+            failed = true;
+        }
+        assertTrue(failed, "Acquiring entities with null id didn't fail");
+        assertTrue(!entityLocker.isLocked(id1) && !entityLocker.isLocked(id2), "Entities locked before failure were not unlocked");
+        assertTrue(entityLocker.snapshot().getEntityLockCount() == 0,
+                "Gate counts " + entityLocker.snapshot().getEntityLockCount() + " resources after failed acquire");
+        assertTrue(tryLockInOtherThread(entityLocker, id1) && tryLockInOtherThread(entityLocker, id2),
+                "Entities can't be locked by other thread after failed acquire");
+        try (LockGuard<K> guard = entityLocker.acquire(id1)) {
+            assertTrue(guard.depth() == 1, "Failed acquire was pushed on guard stack, depth is " + guard.depth());
+        }
+    }
+
+    /**
+     * @return true if other thread could lock the entity without waiting
+     */
+    private boolean tryLockInOtherThread(EntityLocker<K> entityLocker, K id) throws InterruptedException {
+        boolean[] locked = new boolean[1];
+        Thread t = new Thread(() -> {
+            locked[0] = entityLocker.tryLock(id, 0, TimeUnit.MILLISECONDS);
+            if (locked[0]) entityLocker.unlock(id);
+        });
+        t.start();
+        t.join();
+        return locked[0];
+    }
+
+    private void quickUpdate(EntityLocker<K> entityLocker, BaseEntityService<K, T> entityService, K id) {
+        quickUpdate(entityLocker, entityService, id, () -> {});
+    }
+
+    private void quickUpdate(EntityLocker<K> entityLocker, BaseEntityService<K, T> entityService, K id, Runnable underLock) {
+        entityLocker.lock(id);
+        try {
+            underLock.run();
+            T entity = entityService.get(id);
+            changeEntity(entity);
+            entityService.update(entity);
+        } finally {
+            entityLocker.unlock(id);
+        }
+    }
+
+    private void slowUpdate(EntityLocker<K> entityLocker, BaseEntityService<K, T> entityService, K id) throws InterruptedException {
+        entityLocker.lock(id);
+        try {
+            T entity = entityService.get(id);
+            changeEntity(entity);
+            Thread.sleep(20);
+            entityService.update(entity);
+        } finally {
+            entityLocker.unlock(id);
+        }
+    }
+
+    protected void runTest(String methodName) {
+        try {
+            Method testMethod = getMethod(this.getClass(), methodName);
+            if (testMethod != null) {
+                testMethod.invoke(this);
+                System.out.println("\nTest " + methodName + " completed\n--\n");
+            } else {
+                System.out.println("Test method: " + methodName + " not found");
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Method getMethod(Class<?> clazz, String name) {
+        if (clazz.equals(Object.class)) {
+            return null;
+        }
+        try {
+            return clazz.getDeclaredMethod(name);
+        } catch (NoSuchMethodException e) {
+            return getMethod(clazz.getSuperclass(), name);
+        }
+    }
+
+    abstract T createRandomEntity();
+
+    abstract BatchEntityService<K, T> getEntityService();
+
+    abstract void setEntityId(T entity, K id);
+
+    abstract K getEntityId(T entity);
+
+    abstract T cloneEntity(T entity);
+
+    abstract void changeEntity(T entity);
+
+    abstract boolean checkEquals(T e1, T e2);
+
+    String randomString() {
+        return UUID.randomUUID().toString();
+    }
+
+    int randomNumber(int start, int end) {
+        return ThreadLocalRandom.current().nextInt(start, end + 1);
+    }
+
+    void assertTrue(boolean condition, String message) {
+        if (!condition) {
+            System.out.println("Assertion error!: " + message);
+        }
+    }
+
+    /**
+     * Counts writes to the backing service.
+     */
+    private static class CountingBatchService<K, T> implements BatchEntityService<K, T> {
+
+        private final BatchEntityService<K, T> delegate;
+
+        private final AtomicInteger writeAllCount = new AtomicInteger();
+
+        /* Updates and deletes of single entities. */
+        private final AtomicInteger singleWriteCount = new AtomicInteger();
+
+        CountingBatchService(BatchEntityService<K, T> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public K create(T entity) {
+            return delegate.create(entity);
+        }
+
+        @Override
+        public T get(K id) {
+            return delegate.get(id);
+        }
+
+        @Override
+        public List<K> listIds() {
+            return delegate.listIds();
+        }
+
+        @Override
+        public void update(T entity) {
+            singleWriteCount.incrementAndGet();
+            delegate.update(entity);
+        }
+
+        @Override
+        public void delete(K id) {
+            singleWriteCount.incrementAndGet();
+            delegate.delete(id);
+        }
+
+        @Override
+        public void writeAll(Collection<T> updates, Collection<K> deletes) {
+            writeAllCount.incrementAndGet();
+            delegate.writeAll(updates, deletes);
         }
     }
 
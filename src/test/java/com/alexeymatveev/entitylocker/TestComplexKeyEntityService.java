@@ -2,7 +2,7 @@ package com.alexeymatveev.entitylocker;
 
 import com.alexeymatveev.entitylocker.model.ComplexKey;
 import com.alexeymatveev.entitylocker.model.ComplexKeyEntity;
-import com.alexeymatveev.entitylocker.service.BaseEntityService;
+import com.alexeymatveev.entitylocker.service.BatchEntityService;
 import com.alexeymatveev.entitylocker.service.impl.UnsafeComplexKeyEntityServiceImpl;
 
 /**
@@ -23,6 +23,27 @@ public class TestComplexKeyEntityService extends BaseEntityTest<ComplexKey, Comp
 //        instance.runTest("testDeadlockOutsideEntityLocker");
         instance.runTest("testGlobalLock");
         instance.runTest("testGlobalLockEscalation");
+        instance.runTest("testCachingServiceSingleFlight");
+        instance.runTest("testIntrospection");
+        instance.runTest("testAdmissionControl");
+        instance.runTest("testEntityCondition");
+        instance.runTest("testEntitySemaphore");
+        instance.runTest("testParallelForEach");
+        instance.runTest("testLockManager");
+        instance.runTest("testLockPipeline");
+        instance.runTest("testLockingService");
+        instance.runTest("testLockProfiler");
+        instance.runTest("testBiasedLocking");
+        instance.runTest("testLockPriority");
+        instance.runTest("testMvccService");
+        instance.runTest("testGlobalLockEscalationDeadlock");
+        instance.runTest("testGlobalLockFairness");
+        instance.runTest("testTimedLocking");
+        instance.runTest("testTransaction");
+        instance.runTest("testLockHandle");
+        instance.runTest("testQueuedEntityLock");
+        instance.runTest("testShardedCounter");
+        instance.runTest("testLockGuard");
     }
 
     @Override
@@ -31,7 +52,7 @@ public class TestComplexKeyEntityService extends BaseEntityTest<ComplexKey, Comp
     }
 
     @Override
-    BaseEntityService<ComplexKey, ComplexKeyEntity> getEntityService() {
+    BatchEntityService<ComplexKey, ComplexKeyEntity> getEntityService() {
         return new UnsafeComplexKeyEntityServiceImpl();
     }
 
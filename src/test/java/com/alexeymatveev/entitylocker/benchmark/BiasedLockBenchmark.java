@@ -0,0 +1,80 @@
+package com.alexeymatveev.entitylocker.benchmark;
+
+import com.alexeymatveev.entitylocker.EntityLockType;
+import com.alexeymatveev.entitylocker.EntityLocker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run this class to compare {@link EntityLockType#REENTRANT} and {@link EntityLockType#BIASED} entity locks
+ * for two access patterns:
+ * - owned: every thread locks only its own entities, so biased locks never need revocation
+ * - ping-pong: every thread locks random entities of a small shared set, so biases are revoked all the time
+ * Pass thread counts as arguments, by default 8, 32 and 64 threads are measured.
+ */
+public class BiasedLockBenchmark {
+
+    private static final long DURATION_MILLIS = 2_000;
+
+    private static final int ENTITIES_PER_THREAD = 4;
+
+    private static final int SHARED_ENTITIES = 8;
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] threadCounts = {8, 32, 64};
+        if (args.length > 0) {
+            threadCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                threadCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("Available processors: " + Runtime.getRuntime().availableProcessors());
+        for (int threads : threadCounts) {
+            for (EntityLockType type : new EntityLockType[]{EntityLockType.REENTRANT, EntityLockType.BIASED}) {
+                run(type, "owned", threads, false);
+            }
+            for (EntityLockType type : new EntityLockType[]{EntityLockType.REENTRANT, EntityLockType.BIASED}) {
+                run(type, "ping-pong", threads, true);
+            }
+        }
+    }
+
+    private static void run(EntityLockType type, String pattern, int threads, boolean shared) throws InterruptedException {
+        EntityLocker<Long> entityLocker = new EntityLocker<>();
+        entityLocker.setEntityLockType(type);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong operations = new AtomicLong();
+        CountDownLatch started = new CountDownLatch(threads);
+        CountDownLatch finished = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final long firstOwnId = (long) i * ENTITIES_PER_THREAD;
+            Thread t = new Thread(() -> {
+                long count = 0;
+                started.countDown();
+                try {
+                    while (running.get()) {
+                        long id = shared
+                                ? ThreadLocalRandom.current().nextInt(SHARED_ENTITIES)
+                                : firstOwnId + ThreadLocalRandom.current().nextInt(ENTITIES_PER_THREAD);
+                        entityLocker.lock(id);
+                        entityLocker.unlock(id);
+                        count++;
+                    }
+                } finally {
+                    operations.addAndGet(count);
+                    finished.countDown();
+                }
+            });
+            t.start();
+        }
+        started.await();
+        Thread.sleep(DURATION_MILLIS);
+        running.set(false);
+        finished.await();
+        System.out.printf("%-10s %-10s %3d threads: %,12d ops/s, %d biased locks%n", type, pattern, threads,
+                operations.get() * 1000 / DURATION_MILLIS, entityLocker.getBiasedLockCount());
+    }
+}
@@ -0,0 +1,101 @@
+package com.alexeymatveev.entitylocker.benchmark;
+
+import com.alexeymatveev.entitylocker.EntityLocker;
+import com.alexeymatveev.entitylocker.GlobalLockFairness;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run this class to see how long {@link EntityLocker#globalLock()} waits under sustained entity locking traffic
+ * with every {@link GlobalLockFairness} policy, and how much entity locking throughput each policy keeps.
+ */
+public class GlobalLockLatencyBenchmark {
+
+    // number of threads constantly locking entities
+    private static final int ENTITY_THREADS = 16;
+
+    // number of distinct entity ids
+    private static final int ENTITIES = 64;
+
+    // work done under entity lock
+    private static final long ENTITY_HOLD_NANOS = 2_000;
+
+    private static final long DURATION_MILLIS = 2_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        for (GlobalLockFairness fairness : GlobalLockFairness.values()) {
+            run(fairness);
+        }
+    }
+
+    private static void run(GlobalLockFairness fairness) throws InterruptedException {
+        EntityLocker<Integer> entityLocker = new EntityLocker<>();
+        entityLocker.setGlobalLockFairness(fairness);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong entityOperations = new AtomicLong();
+        CountDownLatch finished = new CountDownLatch(ENTITY_THREADS);
+
+        for (int i = 0; i < ENTITY_THREADS; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    while (running.get()) {
+                        Integer id = ThreadLocalRandom.current().nextInt(ENTITIES);
+                        entityLocker.lock(id);
+                        try {
+                            spin(ENTITY_HOLD_NANOS);
+                        } finally {
+                            entityLocker.unlock(id);
+                        }
+                        entityOperations.incrementAndGet();
+                    }
+                } finally {
+                    finished.countDown();
+                }
+            });
+            t.start();
+        }
+
+        List<Long> globalWaits = new ArrayList<>();
+        long end = System.currentTimeMillis() + DURATION_MILLIS;
+        while (System.currentTimeMillis() < end) {
+            long before = System.nanoTime();
+            entityLocker.globalLock();
+            globalWaits.add(System.nanoTime() - before);
+            spin(ENTITY_HOLD_NANOS);
+            entityLocker.globalUnlock();
+            Thread.sleep(1);
+        }
+        running.set(false);
+        finished.await();
+
+        Collections.sort(globalWaits);
+        long sum = 0;
+        for (long wait : globalWaits) {
+            sum += wait;
+        }
+        System.out.printf("%-18s global locks: %5d, wait avg %8.1f us, p99 %8.1f us, max %8.1f us; entity ops/s: %d%n",
+                fairness, globalWaits.size(),
+                micros(sum / globalWaits.size()),
+                micros(globalWaits.get((int) (globalWaits.size() * 0.99))),
+                micros(globalWaits.get(globalWaits.size() - 1)),
+                entityOperations.get() * 1000 / DURATION_MILLIS);
+    }
+
+    private static void spin(long nanos) {
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end) {
+            // busy wait to emulate work under lock
+        }
+    }
+
+    private static double micros(long nanos) {
+        return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,76 @@
+package com.alexeymatveev.entitylocker.benchmark;
+
+import com.alexeymatveev.entitylocker.EntityLockType;
+import com.alexeymatveev.entitylocker.EntityLocker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run this class to compare {@link EntityLockType entity lock types} when many threads lock a single hot entity.
+ * Pass thread counts as arguments, by default 8, 32 and 64 threads are measured.
+ */
+public class HotEntityLockBenchmark {
+
+    private static final long DURATION_MILLIS = 2_000;
+
+    // work done under entity lock
+    private static final int WORK_UNDER_LOCK = 50;
+
+    private static long sink;
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] threadCounts = {8, 32, 64};
+        if (args.length > 0) {
+            threadCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                threadCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("Available processors: " + Runtime.getRuntime().availableProcessors());
+        for (int threads : threadCounts) {
+            for (EntityLockType type : EntityLockType.values()) {
+                run(type, threads);
+            }
+        }
+    }
+
+    private static void run(EntityLockType type, int threads) throws InterruptedException {
+        EntityLocker<Long> entityLocker = new EntityLocker<>();
+        entityLocker.setEntityLockType(type);
+        Long id = 1L;
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong operations = new AtomicLong();
+        CountDownLatch started = new CountDownLatch(threads);
+        CountDownLatch finished = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                long count = 0;
+                started.countDown();
+                try {
+                    while (running.get()) {
+                        entityLocker.lock(id);
+                        try {
+                            for (int j = 0; j < WORK_UNDER_LOCK; j++) {
+                                sink++;
+                            }
+                        } finally {
+                            entityLocker.unlock(id);
+                        }
+                        count++;
+                    }
+                } finally {
+                    operations.addAndGet(count);
+                    finished.countDown();
+                }
+            });
+            t.start();
+        }
+        started.await();
+        Thread.sleep(DURATION_MILLIS);
+        running.set(false);
+        finished.await();
+        System.out.printf("%-10s %3d threads: %,12d ops/s%n", type, threads, operations.get() * 1000 / DURATION_MILLIS);
+    }
+}
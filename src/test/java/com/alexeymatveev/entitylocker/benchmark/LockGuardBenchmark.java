@@ -0,0 +1,75 @@
+package com.alexeymatveev.entitylocker.benchmark;
+
+import com.alexeymatveev.entitylocker.EntityLocker;
+import com.alexeymatveev.entitylocker.LockGuard;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Run this class to compare plain lock / unlock with {@link LockGuard} try-with-resources locking.
+ * Prints time and bytes allocated per operation - guards are expected to allocate nothing.
+ *
+ * Allocation is measured with HotSpot specific {@link com.sun.management.ThreadMXBean}.
+ */
+public class LockGuardBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 1_000_000;
+
+    private static final int ITERATIONS = 5_000_000;
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long sink;
+
+    @SuppressWarnings("try")
+    public static void main(String[] args) {
+        EntityLocker<Long> entityLocker = new EntityLocker<>();
+        Long id = 1L;
+        List<Long> ids = Arrays.asList(1L, 2L);
+
+        Runnable plain = () -> {
+            entityLocker.lock(id);
+            try {
+                sink++;
+            } finally {
+                entityLocker.unlock(id);
+            }
+        };
+        Runnable guard = () -> {
+            try (LockGuard<Long> g = entityLocker.acquire(id)) {
+                sink++;
+            }
+        };
+        Runnable multiGuard = () -> {
+            try (LockGuard<Long> g = entityLocker.acquire(ids)) {
+                sink++;
+            }
+        };
+
+        // run twice - first round is warmup for all the cases
+        for (int round = 0; round < 2; round++) {
+            boolean warmup = round == 0;
+            run("lock / unlock", plain, warmup);
+            run("acquire guard", guard, warmup);
+            run("acquire multi-key guard", multiGuard, warmup);
+        }
+    }
+
+    private static void run(String name, Runnable operation, boolean warmup) {
+        int iterations = warmup ? WARMUP_ITERATIONS : ITERATIONS;
+        long threadId = Thread.currentThread().getId();
+        long bytesBefore = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+        long before = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        long nanos = System.nanoTime() - before;
+        long bytes = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId) - bytesBefore;
+        if (!warmup) {
+            System.out.printf("%-25s %8.1f ns/op %8.3f bytes/op%n", name, (double) nanos / iterations, (double) bytes / iterations);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.alexeymatveev.entitylocker.benchmark;
+
+import com.alexeymatveev.entitylocker.EntityLockPipeline;
+import com.alexeymatveev.entitylocker.EntityLocker;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Run this class to compare {@link EntityLocker} and {@link EntityLockPipeline} when many threads lock
+ * random entities of a small set for very short time.
+ * Pass thread counts as arguments, by default 8, 32 and 64 threads are measured.
+ */
+public class LockPipelineBenchmark {
+
+    private static final long DURATION_MILLIS = 2_000;
+
+    private static final int NUMBER_OF_ENTITIES = 64;
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] threadCounts = {8, 32, 64};
+        if (args.length > 0) {
+            threadCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                threadCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("Available processors: " + Runtime.getRuntime().availableProcessors());
+        for (int threads : threadCounts) {
+            EntityLocker<Long> entityLocker = new EntityLocker<>();
+            run("locker", threads, id -> {
+                entityLocker.lock(id);
+                entityLocker.unlock(id);
+            });
+            EntityLockPipeline<Long> lockPipeline = new EntityLockPipeline<>();
+            run("pipeline", threads, id -> {
+                lockPipeline.lock(id);
+                lockPipeline.unlock(id);
+            });
+            System.out.printf("%-10s %3d threads: %.1f requests per batch%n", "pipeline", threads, lockPipeline.getAverageBatchSize());
+        }
+    }
+
+    private static void run(String name, int threads, Consumer<Long> lockUnlock) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong operations = new AtomicLong();
+        CountDownLatch started = new CountDownLatch(threads);
+        CountDownLatch finished = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                long count = 0;
+                started.countDown();
+                try {
+                    while (running.get()) {
+                        lockUnlock.accept((long) ThreadLocalRandom.current().nextInt(NUMBER_OF_ENTITIES));
+                        count++;
+                    }
+                } finally {
+                    operations.addAndGet(count);
+                    finished.countDown();
+                }
+            });
+            t.start();
+        }
+        started.await();
+        Thread.sleep(DURATION_MILLIS);
+        running.set(false);
+        finished.await();
+        System.out.printf("%-10s %3d threads: %,12d ops/s%n", name, threads, operations.get() * 1000 / DURATION_MILLIS);
+    }
+}
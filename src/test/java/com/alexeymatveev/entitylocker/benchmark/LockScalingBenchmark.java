@@ -0,0 +1,78 @@
+package com.alexeymatveev.entitylocker.benchmark;
+
+import com.alexeymatveev.entitylocker.EntityLocker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run this class to see how {@link EntityLocker} throughput scales with the number of threads when threads
+ * rarely contend for the same entity, so only the locker's shared state (gate counter and lock table) is contended.
+ * By default thread counts from 1 to all hardware threads are measured doubling each time,
+ * pass thread counts as arguments to measure others.
+ */
+public class LockScalingBenchmark {
+
+    private static final long DURATION_MILLIS = 2_000;
+
+    private static final int NUMBER_OF_ENTITIES = 100_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int processors = Runtime.getRuntime().availableProcessors();
+        List<Integer> threadCounts = new ArrayList<>();
+        if (args.length > 0) {
+            for (String arg : args) {
+                threadCounts.add(Integer.parseInt(arg));
+            }
+        } else {
+            for (int threads = 1; threads < processors; threads <<= 1) {
+                threadCounts.add(threads);
+            }
+            threadCounts.add(processors);
+        }
+        System.out.println("Available processors: " + processors);
+        long singleThreadOps = 0;
+        for (int threads : threadCounts) {
+            long ops = run(threads);
+            if (singleThreadOps == 0) {
+                singleThreadOps = ops / threads;
+            }
+            System.out.printf("%3d threads: %,12d ops/s, %.2fx of one thread%n", threads, ops, (double) ops / singleThreadOps);
+        }
+    }
+
+    private static long run(int threads) throws InterruptedException {
+        EntityLocker<Long> entityLocker = new EntityLocker<>();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong operations = new AtomicLong();
+        CountDownLatch started = new CountDownLatch(threads);
+        CountDownLatch finished = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                long count = 0;
+                started.countDown();
+                try {
+                    while (running.get()) {
+                        long id = ThreadLocalRandom.current().nextInt(NUMBER_OF_ENTITIES);
+                        entityLocker.lock(id);
+                        entityLocker.unlock(id);
+                        count++;
+                    }
+                } finally {
+                    operations.addAndGet(count);
+                    finished.countDown();
+                }
+            });
+            t.start();
+        }
+        started.await();
+        Thread.sleep(DURATION_MILLIS);
+        running.set(false);
+        finished.await();
+        return operations.get() * 1000 / DURATION_MILLIS;
+    }
+}
@@ -0,0 +1,17 @@
+package com.alexeymatveev.entitylocker.service;
+
+import java.util.Collection;
+
+/**
+ * Entity service which is able to apply many changes in a single call (one round-trip to the storage).
+ */
+public interface BatchEntityService<K, T> extends BaseEntityService<K, T> {
+
+    /**
+     * Applies all updates and deletes at once.
+     * @param updates entities to update
+     * @param deletes ids of entities to delete
+     */
+    void writeAll(Collection<T> updates, Collection<K> deletes);
+
+}
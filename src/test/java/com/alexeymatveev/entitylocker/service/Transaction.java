@@ -0,0 +1,154 @@
+package com.alexeymatveev.entitylocker.service;
+
+import com.alexeymatveev.entitylocker.EntityLocker;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Unit of work over a {@link BatchEntityService} using strict two-phase locking with {@link EntityLocker}.
+ *
+ * Entity lock is acquired the first time an entity is touched (get / update / delete) and held until
+ * the transaction ends. Changes are buffered locally and flushed with a single
+ * {@link BatchEntityService#writeAll} call on {@link #commit()}, only then all locks are released.
+ *
+ * Transaction is bound to the thread which created it - entity locks are owned by that thread.
+ *
+ * Usage:
+ * <pre>
+ * try (Transaction&lt;Long, LongKeyEntity&gt; tx = new Transaction&lt;&gt;(locker, service, LongKeyEntity::getId)) {
+ *     LongKeyEntity entity = tx.get(id);
+ *     entity.setHeadline("new");
+ *     tx.update(entity);
+ *     tx.commit();
+ * }
+ * </pre>
+ */
+public class Transaction<K, T> implements AutoCloseable {
+
+    private final EntityLocker<K> entityLocker;
+
+    private final BatchEntityService<K, T> entityService;
+
+    private final Function<T, K> idFunction;
+
+    /* Keys locked by this transaction in order of acquiring. */
+    private final Set<K> lockedKeys = new LinkedHashSet<>();
+
+    /* Buffered writes: entity to update or null if entity is deleted. */
+    private final Map<K, T> writes = new LinkedHashMap<>();
+
+    private boolean finished;
+
+    public Transaction(EntityLocker<K> entityLocker, BatchEntityService<K, T> entityService, Function<T, K> idFunction) {
+        this.entityLocker = entityLocker;
+        this.entityService = entityService;
+        this.idFunction = idFunction;
+    }
+
+    /**
+     * Locks the entity and returns its state as seen by this transaction (including buffered writes).
+     * @param id entity id
+     * @return entity or null if it doesn't exist or was deleted in this transaction
+     */
+    public T get(K id) {
+        touch(id);
+        if (writes.containsKey(id)) {
+            return writes.get(id);
+        }
+        return entityService.get(id);
+    }
+
+    /**
+     * Locks the entity and buffers its update until commit.
+     * @param entity entity to update
+     */
+    public void update(T entity) {
+        K id = idFunction.apply(entity);
+        touch(id);
+        writes.put(id, entity);
+    }
+
+    /**
+     * Locks the entity and buffers its deletion until commit.
+     * @param id entity id
+     */
+    public void delete(K id) {
+        touch(id);
+        writes.put(id, null);
+    }
+
+    /**
+     * Flushes all buffered changes in one batch and releases all entity locks.
+     */
+    public void commit() {
+        checkActive();
+        try {
+            if (!writes.isEmpty()) {
+                List<T> updates = new ArrayList<>();
+                List<K> deletes = new ArrayList<>();
+                writes.forEach((id, entity) -> {
+                    if (entity == null) deletes.add(id);
+                    else updates.add(entity);
+                });
+                entityService.writeAll(updates, deletes);
+            }
+        } finally {
+            finish();
+        }
+    }
+
+    /**
+     * Discards all buffered changes and releases all entity locks.
+     */
+    public void rollback() {
+        checkActive();
+        finish();
+    }
+
+    /**
+     * Rolls back the transaction if it was not committed.
+     */
+    @Override
+    public void close() {
+        if (!finished) {
+            rollback();
+        }
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Acquires entity lock if it's the first time transaction touches the entity (growing phase).
+     */
+    private void touch(K id) {
+        checkActive();
+        if (!lockedKeys.contains(id)) {
+            entityLocker.lock(id);
+            lockedKeys.add(id);
+        }
+    }
+
+    /**
+     * Releases all locks at once (shrinking phase).
+     */
+    private void finish() {
+        finished = true;
+        writes.clear();
+        lockedKeys.forEach(entityLocker::unlock);
+        lockedKeys.clear();
+    }
+
+    private void checkActive() {
+        if (finished) {
+            throw new IllegalStateException("Transaction is already finished");
+        }
+    }
+}
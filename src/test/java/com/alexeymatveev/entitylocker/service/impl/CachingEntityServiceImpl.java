@@ -0,0 +1,205 @@
+package com.alexeymatveev.entitylocker.service.impl;
+
+import com.alexeymatveev.entitylocker.EntityLocker;
+import com.alexeymatveev.entitylocker.service.BaseEntityService;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Read-through caching decorator for any {@link BaseEntityService}.
+ *
+ * Cache is bounded by size and evicts least recently used entities. It's split into segments by id hash,
+ * each segment is guarded by its own monitor, so hits of different entities mostly don't contend.
+ * Size bound and LRU order are kept per segment - an entity is evicted when its segment is full
+ * even if other segments have room.
+ * Cache misses are loaded under the entity lock of provided {@link EntityLocker},
+ * so concurrent misses of the same id result in a single load from the backing service.
+ * Updates and deletes invalidate the cached entity under the same entity lock.
+ */
+public class CachingEntityServiceImpl<K, T> implements BaseEntityService<K, T> {
+
+    /* Max number of cache segments, power of two. */
+    private static final int MAX_SEGMENTS = 16;
+
+    private final BaseEntityService<K, T> delegate;
+
+    private final EntityLocker<K> entityLocker;
+
+    /* Extracts id from entity - needed to invalidate the cache on update. */
+    private final Function<T, K> idFunction;
+
+    /* Copies entity so callers can't change the cached instance. */
+    private final UnaryOperator<T> copyFunction;
+
+    /* Access ordered maps - eldest entry is the least recently used one of the segment. Each guarded by itself. */
+    private final List<Map<K, T>> segments = new ArrayList<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong loadCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public CachingEntityServiceImpl(BaseEntityService<K, T> delegate, EntityLocker<K> entityLocker, int maximumSize,
+                                    Function<T, K> idFunction, UnaryOperator<T> copyFunction) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Cache maximum size must be positive: " + maximumSize);
+        }
+        this.delegate = delegate;
+        this.entityLocker = entityLocker;
+        this.idFunction = idFunction;
+        this.copyFunction = copyFunction;
+        // every segment holds at least one entity, remainder is spread so capacities sum up to maximum size
+        int segmentCount = Integer.highestOneBit(Math.min(maximumSize, MAX_SEGMENTS));
+        int segmentSize = maximumSize / segmentCount;
+        int remainder = maximumSize % segmentCount;
+        for (int i = 0; i < segmentCount; i++) {
+            segments.add(newSegment(i < remainder ? segmentSize + 1 : segmentSize));
+        }
+    }
+
+    private Map<K, T> newSegment(int maximumSize) {
+        return new LinkedHashMap<K, T>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, T> eldest) {
+                boolean evict = size() > maximumSize;
+                if (evict) evictionCount.incrementAndGet();
+                return evict;
+            }
+        };
+    }
+
+    @Override
+    public K create(T entity) {
+        // nothing to invalidate - entity with new id can't be cached yet
+        return delegate.create(entity);
+    }
+
+    @Override
+    public T get(K id) {
+        T cached = getCached(id);
+        if (cached != null) {
+            hitCount.incrementAndGet();
+            return copyFunction.apply(cached);
+        }
+        entityLocker.lock(id);
+        try {
+            // other thread could load the entity while we were waiting for the lock
+            cached = getCached(id);
+            if (cached != null) {
+                hitCount.incrementAndGet();
+                return copyFunction.apply(cached);
+            }
+            missCount.incrementAndGet();
+            loadCount.incrementAndGet();
+            T loaded = delegate.get(id);
+            if (loaded == null) {
+                return null;
+            }
+            Map<K, T> segment = segmentFor(id);
+            synchronized (segment) {
+                segment.put(id, copyFunction.apply(loaded));
+            }
+            return loaded;
+        } finally {
+            entityLocker.unlock(id);
+        }
+    }
+
+    @Override
+    public List<K> listIds() {
+        return delegate.listIds();
+    }
+
+    @Override
+    public void update(T entity) {
+        K id = idFunction.apply(entity);
+        entityLocker.lock(id);
+        try {
+            delegate.update(entity);
+            invalidate(id);
+        } finally {
+            entityLocker.unlock(id);
+        }
+    }
+
+    @Override
+    public void delete(K id) {
+        entityLocker.lock(id);
+        try {
+            delegate.delete(id);
+            invalidate(id);
+        } finally {
+            entityLocker.unlock(id);
+        }
+    }
+
+    /**
+     * Removes the entity from cache. Caller is expected to hold the entity lock.
+     * @param id entity id
+     */
+    private void invalidate(K id) {
+        Map<K, T> segment = segmentFor(id);
+        synchronized (segment) {
+            segment.remove(id);
+        }
+    }
+
+    private T getCached(K id) {
+        Map<K, T> segment = segmentFor(id);
+        synchronized (segment) {
+            return segment.get(id);
+        }
+    }
+
+    private Map<K, T> segmentFor(K id) {
+        int hash = id.hashCode();
+        return segments.get((hash ^ (hash >>> 16)) & (segments.size() - 1));
+    }
+
+    public int size() {
+        int size = 0;
+        for (Map<K, T> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return ratio of cache hits to all get requests, 0 if there were no requests yet
+     */
+    public double getHitRatio() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return number of entities loaded from the backing service
+     */
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+}
@@ -0,0 +1,135 @@
+package com.alexeymatveev.entitylocker.service.impl;
+
+import com.alexeymatveev.entitylocker.EntitySemaphore;
+import com.alexeymatveev.entitylocker.service.BaseEntityService;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Decorator for any {@link BaseEntityService} which locks entities by their keys itself, so callers don't have to.
+ *
+ * Entity locks are taken in the mode required by operation: shared for get, exclusive for update and delete,
+ * none for create and listIds. Shared / exclusive modes are built on {@link EntitySemaphore}: get takes one permit
+ * of the entity, update and delete take all of them. Permits are fair, so constant reads of an entity
+ * can't starve its updates - reads arrived after a waiting update wait for it.
+ *
+ * Locks are held only for the calls to the backing service, read-modify-write holds exclusive lock
+ * for the whole read, modification and write.
+ */
+public class LockingEntityServiceImpl<K, T> implements BaseEntityService<K, T> {
+
+    private final BaseEntityService<K, T> delegate;
+
+    private final EntitySemaphore<K> entitySemaphore;
+
+    /* Extracts id from entity - needed to lock the entity on update. */
+    private final Function<T, K> idFunction;
+
+    /**
+     * @param delegate backing entity service
+     * @param permitsPerEntity max number of threads getting the same entity at the same time
+     * @param idFunction extracts id from entity
+     */
+    public LockingEntityServiceImpl(BaseEntityService<K, T> delegate, int permitsPerEntity, Function<T, K> idFunction) {
+        this.delegate = delegate;
+        this.entitySemaphore = new EntitySemaphore<>(permitsPerEntity, true);
+        this.idFunction = idFunction;
+    }
+
+    @Override
+    public K create(T entity) {
+        // nobody can lock entity with new id yet
+        return delegate.create(entity);
+    }
+
+    @Override
+    public T get(K id) {
+        entitySemaphore.acquire(id, 1);
+        try {
+            return delegate.get(id);
+        } finally {
+            entitySemaphore.release(id, 1);
+        }
+    }
+
+    @Override
+    public List<K> listIds() {
+        return delegate.listIds();
+    }
+
+    @Override
+    public void update(T entity) {
+        K id = idFunction.apply(entity);
+        lockExclusive(id);
+        try {
+            delegate.update(entity);
+        } finally {
+            unlockExclusive(id);
+        }
+    }
+
+    @Override
+    public void delete(K id) {
+        lockExclusive(id);
+        try {
+            delegate.delete(id);
+        } finally {
+            unlockExclusive(id);
+        }
+    }
+
+    /**
+     * Updates the entity only if its current state equals to expected one.
+     * @param expected expected current state of entity
+     * @param updated new state of entity with the same id
+     * @return true - if entity was updated
+     *         false - if current state of entity is different
+     */
+    public boolean compareAndUpdate(T expected, T updated) {
+        K id = idFunction.apply(updated);
+        lockExclusive(id);
+        try {
+            if (!Objects.equals(delegate.get(id), expected)) {
+                return false;
+            }
+            delegate.update(updated);
+            return true;
+        } finally {
+            unlockExclusive(id);
+        }
+    }
+
+    /**
+     * Reads the entity, modifies it and writes it back holding exclusive lock of the entity,
+     * so modifier is called exactly once and sees the latest state. Modifier should be short - it blocks
+     * all reads and writes of the entity.
+     * @param id entity id
+     * @param modifier modifies the entity, may change and return the passed instance
+     * @return updated entity or null if entity doesn't exist
+     */
+    public T updateAndGet(K id, UnaryOperator<T> modifier) {
+        lockExclusive(id);
+        try {
+            T current = delegate.get(id);
+            if (current == null) {
+                return null;
+            }
+            T updated = modifier.apply(current);
+            delegate.update(updated);
+            return updated;
+        } finally {
+            unlockExclusive(id);
+        }
+    }
+
+    private void lockExclusive(K id) {
+        entitySemaphore.acquire(id, entitySemaphore.getPermitsPerEntity());
+    }
+
+    private void unlockExclusive(K id) {
+        entitySemaphore.release(id, entitySemaphore.getPermitsPerEntity());
+    }
+}
@@ -0,0 +1,336 @@
+package com.alexeymatveev.entitylocker.service.impl;
+
+import com.alexeymatveev.entitylocker.EntityLocker;
+import com.alexeymatveev.entitylocker.service.BaseEntityService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Multi-version decorator for any {@link BaseEntityService} - readers never take entity locks.
+ *
+ * Writers serialize per entity with {@link EntityLocker}, write through to the backing service and then commit
+ * a new immutable version of the entity. Every commit gets the next version number, versions of an entity are
+ * chained from the newest one. Only assigning the number and installing the version are serialized between
+ * all writers, with a short commit lock.
+ *
+ * Readers walk the version chains without any lock: {@link #get} returns the newest version,
+ * {@link #snapshot()} sees all entities as of one commit. Versions older than the oldest open snapshot
+ * are garbage-collected every {@link #GC_INTERVAL} commits, by the committing writer after it released
+ * the entity lock, or with {@link #collectGarbage()}.
+ *
+ * Only entities created through this service are visible - existing entities of the backing service are not loaded.
+ */
+public class MvccEntityServiceImpl<K, T> implements BaseEntityService<K, T> {
+
+    /* Number of commits after which old versions are garbage-collected. */
+    public static final int GC_INTERVAL = 64;
+
+    private final BaseEntityService<K, T> delegate;
+
+    private final EntityLocker<K> entityLocker;
+
+    /* Extracts id from entity - needed to lock the entity on update. */
+    private final Function<T, K> idFunction;
+
+    /* Copies entity so nobody can change the committed versions. */
+    private final UnaryOperator<T> copyFunction;
+
+    /* Newest committed (or being committed) version of every entity. */
+    private final Map<K, Version<T>> versions = new ConcurrentHashMap<>();
+
+    /* Guards assigning version numbers and installing versions, so commits become visible in version order. */
+    private final ReentrantLock commitLock = new ReentrantLock();
+
+    /* Version of the last commit visible to snapshots. */
+    private final AtomicLong lastCommitted = new AtomicLong();
+
+    /* Open snapshots - their versions can't be garbage-collected. */
+    private final Set<Snapshot> openSnapshots = ConcurrentHashMap.newKeySet();
+
+    /* Snapshots older than this version may be missing versions - only grows. */
+    private final AtomicLong gcHorizon = new AtomicLong();
+
+    /* Prevents concurrent garbage collections. */
+    private final ReentrantLock gcLock = new ReentrantLock();
+
+    private final AtomicLong collectedCount = new AtomicLong();
+
+    public MvccEntityServiceImpl(BaseEntityService<K, T> delegate, EntityLocker<K> entityLocker,
+                                 Function<T, K> idFunction, UnaryOperator<T> copyFunction) {
+        this.delegate = delegate;
+        this.entityLocker = entityLocker;
+        this.idFunction = idFunction;
+        this.copyFunction = copyFunction;
+    }
+
+    @Override
+    public K create(T entity) {
+        K id = delegate.create(entity);
+        long version;
+        entityLocker.lock(id);
+        try {
+            // commit the entity as stored, with the id assigned by the backing service
+            version = commit(id, delegate.get(id));
+        } finally {
+            entityLocker.unlock(id);
+        }
+        collectGarbageIfDue(version);
+        return id;
+    }
+
+    /**
+     * Returns the newest version of the entity without taking any lock.
+     * @param id entity id
+     * @return copy of the entity or null if it doesn't exist
+     */
+    @Override
+    public T get(K id) {
+        Version<T> version = versions.get(id);
+        return version == null ? null : copy(version.entity);
+    }
+
+    @Override
+    public List<K> listIds() {
+        List<K> ids = new ArrayList<>();
+        versions.forEach((id, version) -> {
+            if (version.entity != null) ids.add(id);
+        });
+        return ids;
+    }
+
+    @Override
+    public void update(T entity) {
+        K id = idFunction.apply(entity);
+        long version;
+        entityLocker.lock(id);
+        try {
+            delegate.update(entity);
+            version = commit(id, copy(entity));
+        } finally {
+            entityLocker.unlock(id);
+        }
+        collectGarbageIfDue(version);
+    }
+
+    @Override
+    public void delete(K id) {
+        long version;
+        entityLocker.lock(id);
+        try {
+            delegate.delete(id);
+            version = commit(id, null);
+        } finally {
+            entityLocker.unlock(id);
+        }
+        collectGarbageIfDue(version);
+    }
+
+    /**
+     * Opens a snapshot of all entities as of the last commit, reads through it don't take any lock.
+     * Snapshot pins the versions it sees until closed.
+     * @return snapshot to be closed after reading, e.g. with try-with-resources
+     */
+    public Snapshot snapshot() {
+        while (true) {
+            Snapshot snapshot = new Snapshot(lastCommitted.get());
+            // registered before the horizon is checked, while garbage collector publishes the horizon
+            // before it rescans open snapshots - so either the snapshot is seen or it sees the horizon
+            openSnapshots.add(snapshot);
+            if (snapshot.version >= gcHorizon.get()) {
+                return snapshot;
+            }
+            // versions of the snapshot may be collected already - retry with newer one
+            openSnapshots.remove(snapshot);
+        }
+    }
+
+    /**
+     * Reads entities consistently - as of the same commit - without taking any lock.
+     * @param ids entity ids
+     * @return entities by id, null values for entities which don't exist
+     */
+    public Map<K, T> getAll(Collection<K> ids) {
+        Map<K, T> entities = new LinkedHashMap<>();
+        try (Snapshot snapshot = snapshot()) {
+            for (K id : ids) {
+                entities.put(id, snapshot.get(id));
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * Removes versions which no open snapshot can see - older than the newest version as of the oldest snapshot.
+     * @return number of removed versions
+     */
+    public int collectGarbage() {
+        gcLock.lock();
+        try {
+            long horizon = Math.min(lastCommitted.get(), oldestSnapshotVersion());
+            gcHorizon.accumulateAndGet(horizon, Math::max);
+            // snapshots opened before the horizon was published are seen by the rescan
+            horizon = Math.min(horizon, oldestSnapshotVersion());
+            int removed = 0;
+            for (Map.Entry<K, Version<T>> entry : versions.entrySet()) {
+                Version<T> visible = entry.getValue().visibleAt(horizon);
+                if (visible == null) {
+                    continue;
+                }
+                for (Version<T> older = visible.previous; older != null; older = older.previous) {
+                    removed++;
+                }
+                visible.previous = null;
+                if (visible == entry.getValue() && visible.entity == null) {
+                    // deleted entity which no snapshot can see anymore
+                    versions.remove(entry.getKey(), visible);
+                    removed++;
+                }
+            }
+            collectedCount.addAndGet(removed);
+            return removed;
+        } finally {
+            gcLock.unlock();
+        }
+    }
+
+    /**
+     * Must be called holding the entity lock.
+     * @param entity new state of the entity or null if it's deleted
+     * @return version of the commit
+     */
+    private long commit(K id, T entity) {
+        long version;
+        commitLock.lock();
+        try {
+            version = lastCommitted.get() + 1;
+            versions.put(id, new Version<>(version, entity, versions.get(id)));
+            lastCommitted.set(version);
+        } finally {
+            commitLock.unlock();
+        }
+        return version;
+    }
+
+    /**
+     * Collects garbage every {@link #GC_INTERVAL} commits unless it's being collected already.
+     * Must be called without holding the entity lock - writers of the entity would wait for the collection.
+     * @param version version of the commit made by current thread
+     */
+    private void collectGarbageIfDue(long version) {
+        if (version % GC_INTERVAL == 0 && gcLock.tryLock()) {
+            try {
+                collectGarbage();
+            } finally {
+                gcLock.unlock();
+            }
+        }
+    }
+
+    private long oldestSnapshotVersion() {
+        long oldest = Long.MAX_VALUE;
+        for (Snapshot snapshot : openSnapshots) {
+            oldest = Math.min(oldest, snapshot.version);
+        }
+        return oldest;
+    }
+
+    private T copy(T entity) {
+        return entity == null ? null : copyFunction.apply(entity);
+    }
+
+    /**
+     * @return number of versions of all entities kept in memory, including deleted entities
+     */
+    public int getVersionCount() {
+        int count = 0;
+        for (Version<T> version : versions.values()) {
+            for (; version != null; version = version.previous) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return number of versions removed by garbage collection
+     */
+    public long getCollectedCount() {
+        return collectedCount.get();
+    }
+
+    public long getLastCommittedVersion() {
+        return lastCommitted.get();
+    }
+
+    /**
+     * State of all entities as of one commit.
+     */
+    public class Snapshot implements AutoCloseable {
+
+        private final long version;
+
+        private Snapshot(long version) {
+            this.version = version;
+        }
+
+        /**
+         * @param id entity id
+         * @return copy of the entity as of the snapshot or null if it didn't exist
+         */
+        public T get(K id) {
+            Version<T> head = versions.get(id);
+            Version<T> visible = head == null ? null : head.visibleAt(version);
+            return visible == null ? null : copy(visible.entity);
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Releases versions pinned by the snapshot.
+         */
+        @Override
+        public void close() {
+            openSnapshots.remove(this);
+        }
+    }
+
+    private static class Version<T> {
+
+        private final long version;
+
+        /* Immutable state of the entity, null if entity is deleted. */
+        private final T entity;
+
+        /* Older version, cut off by garbage collector. */
+        private volatile Version<T> previous;
+
+        Version(long version, T entity, Version<T> previous) {
+            this.version = version;
+            this.entity = entity;
+            this.previous = previous;
+        }
+
+        /**
+         * @return newest version in the chain not newer than the given one, null if there is none
+         */
+        Version<T> visibleAt(long snapshotVersion) {
+            Version<T> version = this;
+            while (version != null && version.version > snapshotVersion) {
+                version = version.previous;
+            }
+            return version;
+        }
+    }
+}
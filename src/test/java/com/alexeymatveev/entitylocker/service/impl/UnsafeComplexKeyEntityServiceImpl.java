@@ -2,9 +2,11 @@ package com.alexeymatveev.entitylocker.service.impl;
 
 import com.alexeymatveev.entitylocker.model.ComplexKey;
 import com.alexeymatveev.entitylocker.model.ComplexKeyEntity;
+import com.alexeymatveev.entitylocker.service.BatchEntityService;
 import com.alexeymatveev.entitylocker.service.ComplexKeyEntityService;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -13,7 +15,7 @@ import java.util.concurrent.ConcurrentHashMap;
 /**
  * Created by Alexey Matveev on 4/4/2018.
  */
-public class UnsafeComplexKeyEntityServiceImpl implements ComplexKeyEntityService {
+public class UnsafeComplexKeyEntityServiceImpl implements ComplexKeyEntityService, BatchEntityService<ComplexKey, ComplexKeyEntity> {
 
     private Map<ComplexKey, ComplexKeyEntity> MEMORY_ENTITY_STORAGE = new ConcurrentHashMap<>();
 
@@ -47,4 +49,10 @@ public class UnsafeComplexKeyEntityServiceImpl implements ComplexKeyEntityServic
     public void delete(ComplexKey id) {
         MEMORY_ENTITY_STORAGE.remove(id);
     }
+
+    @Override
+    public void writeAll(Collection<ComplexKeyEntity> updates, Collection<ComplexKey> deletes) {
+        updates.forEach(this::update);
+        deletes.forEach(this::delete);
+    }
 }
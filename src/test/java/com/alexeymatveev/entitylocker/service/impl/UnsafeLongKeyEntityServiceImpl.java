@@ -1,9 +1,11 @@
 package com.alexeymatveev.entitylocker.service.impl;
 
 import com.alexeymatveev.entitylocker.model.LongKeyEntity;
+import com.alexeymatveev.entitylocker.service.BatchEntityService;
 import com.alexeymatveev.entitylocker.service.LongKeyEntityService;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -12,7 +14,7 @@ import java.util.concurrent.atomic.AtomicLong;
 /**
  * Created by Alexey Matveev on 4/4/2018.
  */
-public class UnsafeLongKeyEntityServiceImpl implements LongKeyEntityService {
+public class UnsafeLongKeyEntityServiceImpl implements LongKeyEntityService, BatchEntityService<Long, LongKeyEntity> {
 
     private AtomicLong identifier = new AtomicLong();
 
@@ -50,4 +52,10 @@ public class UnsafeLongKeyEntityServiceImpl implements LongKeyEntityService {
         MEMORY_ENTITY_STORAGE.remove(id);
     }
 
+    @Override
+    public void writeAll(Collection<LongKeyEntity> updates, Collection<Long> deletes) {
+        updates.forEach(this::update);
+        deletes.forEach(this::delete);
+    }
+
 }